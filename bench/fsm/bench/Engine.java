@@ -0,0 +1,111 @@
+package fsm.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bridge to the FSM classes. They live in the unnamed package, which cannot be
+ * referenced from a named package (and JMH rejects benchmarks in the unnamed
+ * package), so they are reached through method handles held in static finals,
+ * which the JIT treats as constants.
+ */
+final class Engine {
+    private static final MethodHandle BUILD;
+    private static final MethodHandle CLASSIFY;
+    private static final MethodHandle RUN_SINGLE;
+    private static final MethodHandle INITIAL_STATE;
+    private static final MethodHandle GENERATE_MATCHER;
+    private static final MethodHandle DEFINE_MATCHER;
+    private static final MethodHandle SET_MATCHER;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle PROCESS_COMMAND;
+
+    static {
+        try {
+            Class<?> compiledFSM = Class.forName("CompiledFSM");
+            Class<?> binaryFormat = Class.forName("FSMBinaryFormat");
+            Class<?> main = Class.forName("FSMMain");
+            BUILD = handle(compiledFSM, "build", Set.class, Set.class, String.class, Set.class, Map.class)
+                    .asType(MethodType.methodType(Object.class, Set.class, Set.class, String.class, Set.class, Map.class));
+            CLASSIFY = handle(compiledFSM, "classify", CharSequence.class)
+                    .asType(MethodType.methodType(int.class, Object.class, CharSequence.class));
+            RUN_SINGLE = handle(compiledFSM, "runSingle", int.class, CharSequence.class, int.class, int.class, int[].class)
+                    .asType(MethodType.methodType(long.class, Object.class, int.class, CharSequence.class,
+                            int.class, int.class, int[].class));
+            Field initial = compiledFSM.getDeclaredField("initialState");
+            initial.setAccessible(true);
+            INITIAL_STATE = MethodHandles.lookup().unreflectGetter(initial)
+                    .asType(MethodType.methodType(int.class, Object.class));
+            Class<?> generator = Class.forName("MatcherGenerator");
+            Class<?> matcher = Class.forName("FSMMatcher");
+            GENERATE_MATCHER = handle(generator, "generate", compiledFSM)
+                    .asType(MethodType.methodType(byte[].class, Object.class));
+            DEFINE_MATCHER = handle(generator, "define", byte[].class)
+                    .asType(MethodType.methodType(Object.class, byte[].class));
+            SET_MATCHER = handle(compiledFSM, "setMatcher", matcher)
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            WRITE = handle(binaryFormat, "write", compiledFSM, Path.class)
+                    .asType(MethodType.methodType(void.class, Object.class, Path.class));
+            PROCESS_COMMAND = handle(main, "processCommand", String.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    private static MethodHandle handle(Class<?> owner, String name, Class<?>... parameterTypes)
+            throws ReflectiveOperationException {
+        Method method = owner.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    /** Returns a CompiledFSM for the machine. */
+    static Object compile(RandomMachine machine) throws Throwable {
+        return (Object) BUILD.invokeExact(machine.symbols, machine.states, machine.initialState,
+                machine.finalStates, machine.transitions);
+    }
+
+    static int classify(Object compiledFSM, CharSequence input) throws Throwable {
+        return (int) CLASSIFY.invokeExact(compiledFSM, input);
+    }
+
+    /** Runs the whole input one symbol per lookup, bypassing the stride table. */
+    static long runSingleStep(Object compiledFSM, CharSequence input) throws Throwable {
+        int initial = (int) INITIAL_STATE.invokeExact(compiledFSM);
+        return (long) RUN_SINGLE.invokeExact(compiledFSM, initial, input, 0, input.length(), (int[]) null);
+    }
+
+    /** Generates a matcher class for the machine and makes EXECUTE use it, as COMPILE -matcher does. */
+    static void attachMatcher(Object compiledFSM) throws Throwable {
+        byte[] classBytes = (byte[]) GENERATE_MATCHER.invokeExact(compiledFSM);
+        Object matcher = (Object) DEFINE_MATCHER.invokeExact(classBytes);
+        SET_MATCHER.invokeExact(compiledFSM, matcher);
+    }
+
+    static void writeCompiled(Object compiledFSM, Path path) throws Throwable {
+        WRITE.invokeExact(compiledFSM, path);
+    }
+
+    /** Runs one command through FSMMain, exactly as if it had been typed without the ';'. */
+    static void command(String command) throws Throwable {
+        PROCESS_COMMAND.invokeExact(command);
+    }
+
+    /** Swaps System.out for a sink so console output does not distort command timings. */
+    static PrintStream silenceConsole() {
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return previous;
+    }
+}
@@ -0,0 +1,48 @@
+package fsm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EXECUTE throughput on the compiled table for random machines of growing size
+ * and alphabet. Scores are inputs per second; multiply by inputLength for
+ * symbols per second. execute uses the stride table when the machine is small
+ * enough for one, executeSingleStep always does one lookup per symbol.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ExecuteBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    int states;
+
+    @Param({"2", "4", "16"})
+    int symbols;
+
+    @Param({"1048576"})
+    int inputLength;
+
+    private Object fsm;
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        RandomMachine machine = new RandomMachine(states, symbols, 42);
+        fsm = Engine.compile(machine);
+        input = machine.randomInput(inputLength, 7);
+    }
+
+    @Benchmark
+    public int execute() throws Throwable {
+        return Engine.classify(fsm, input);
+    }
+
+    @Benchmark
+    public long executeSingleStep() throws Throwable {
+        return Engine.runSingleStep(fsm, input);
+    }
+}
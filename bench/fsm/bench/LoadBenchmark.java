@@ -0,0 +1,64 @@
+package fsm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LOAD of the same random machine from a text definition and from a COMPILE
+ * file, both through the command path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadBenchmark {
+    @Param({"1000", "100000"})
+    int states;
+
+    @Param({"4"})
+    int symbols;
+
+    private Path directory;
+    private String textFile;
+    private String compiledFile;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        RandomMachine machine = new RandomMachine(states, symbols, 42);
+        directory = Files.createTempDirectory("fsm-bench");
+        Path text = directory.resolve("machine.fsm");
+        Path compiled = directory.resolve("machine.bin");
+        machine.writeText(text);
+        Engine.writeCompiled(Engine.compile(machine), compiled);
+        textFile = text.toString();
+        compiledFile = compiled.toString();
+        console = Engine.silenceConsole();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.setOut(console);
+        Files.deleteIfExists(Path.of(textFile));
+        Files.deleteIfExists(Path.of(compiledFile));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void loadText() throws Throwable {
+        Engine.command("CLEAR");
+        Engine.command("LOAD " + textFile);
+    }
+
+    @Benchmark
+    public void loadCompiled() throws Throwable {
+        Engine.command("CLEAR");
+        Engine.command("LOAD " + compiledFile);
+    }
+}
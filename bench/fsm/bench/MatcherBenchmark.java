@@ -0,0 +1,55 @@
+package fsm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EXECUTE throughput with a generated matcher (COMPILE -matcher) against the
+ * interpreted table, one lookup per symbol and strided, on machines small
+ * enough for a matcher to be generated. Scores are inputs per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatcherBenchmark {
+    @Param({"10", "50", "100"})
+    int states;
+
+    @Param({"2", "4"})
+    int symbols;
+
+    @Param({"1048576"})
+    int inputLength;
+
+    private Object table;
+    private Object generated;
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        RandomMachine machine = new RandomMachine(states, symbols, 42);
+        table = Engine.compile(machine);
+        generated = Engine.compile(machine);
+        Engine.attachMatcher(generated);
+        input = machine.randomInput(inputLength, 7);
+    }
+
+    @Benchmark
+    public long tableSingleStep() throws Throwable {
+        return Engine.runSingleStep(table, input);
+    }
+
+    @Benchmark
+    public int tableStrided() throws Throwable {
+        return Engine.classify(table, input);
+    }
+
+    @Benchmark
+    public int generatedMatcher() throws Throwable {
+        return Engine.classify(generated, input);
+    }
+}
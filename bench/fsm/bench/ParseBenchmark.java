@@ -0,0 +1,47 @@
+package fsm.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Definition parsing: replays the SYMBOLS/STATES/FINAL-STATES/TRANSITIONS
+ * commands of a random machine through FSMMain without any file I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParseBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int states;
+
+    @Param({"2", "10"})
+    int symbols;
+
+    private List<String> commands;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        commands = new RandomMachine(states, symbols, 42).commands();
+        console = Engine.silenceConsole();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void parseDefinition() throws Throwable {
+        Engine.command("CLEAR");
+        for (String command : commands) {
+            Engine.command(command);
+        }
+    }
+}
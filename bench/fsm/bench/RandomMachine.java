@@ -0,0 +1,123 @@
+package fsm.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Random complete DFA with states S0..S(n-1) over the first k characters of
+ * 0-9A-Z. Every state has a transition for every symbol and roughly half of the
+ * states are final, so random inputs never stop early.
+ */
+final class RandomMachine {
+    static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    // Transitions per TRANSITIONS command in the generated script
+    private static final int TRANSITIONS_PER_COMMAND = 1000;
+
+    final Set<Character> symbols = new HashSet<>();
+    final Set<String> states = new HashSet<>();
+    final String initialState = "S0";
+    final Set<String> finalStates = new HashSet<>();
+    final Map<String, Map<Character, String>> transitions = new HashMap<>();
+
+    private final int stateCount;
+    private final int symbolCount;
+    private final int[] targets;
+
+    RandomMachine(int stateCount, int symbolCount, long seed) {
+        if (symbolCount < 1 || symbolCount > ALPHABET.length()) {
+            throw new IllegalArgumentException("symbol count must be 1.." + ALPHABET.length());
+        }
+        this.stateCount = stateCount;
+        this.symbolCount = symbolCount;
+        this.targets = new int[stateCount * symbolCount];
+
+        Random random = new Random(seed);
+        for (int a = 0; a < symbolCount; a++) {
+            symbols.add(ALPHABET.charAt(a));
+        }
+        String[] names = new String[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            names[s] = "S" + s;
+            states.add(names[s]);
+            if (random.nextBoolean()) {
+                finalStates.add(names[s]);
+            }
+        }
+        for (int s = 0; s < stateCount; s++) {
+            Map<Character, String> stateTransitions = new HashMap<>();
+            for (int a = 0; a < symbolCount; a++) {
+                int t = random.nextInt(stateCount);
+                targets[s * symbolCount + a] = t;
+                stateTransitions.put(ALPHABET.charAt(a), names[t]);
+            }
+            transitions.put(names[s], stateTransitions);
+        }
+    }
+
+    /** Random input of the given length over the machine's symbols. */
+    String randomInput(int length, long seed) {
+        Random random = new Random(seed);
+        char[] input = new char[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = ALPHABET.charAt(random.nextInt(symbolCount));
+        }
+        return new String(input);
+    }
+
+    /** The definition as commands without the trailing ';', in the order LOAD would run them. */
+    List<String> commands() {
+        List<String> commands = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("SYMBOLS");
+        for (int a = 0; a < symbolCount; a++) {
+            sb.append(' ').append(ALPHABET.charAt(a));
+        }
+        commands.add(sb.toString());
+
+        sb.setLength(0);
+        sb.append("STATES");
+        for (int s = 0; s < stateCount; s++) {
+            sb.append(" S").append(s);
+        }
+        commands.add(sb.toString());
+        commands.add("INITIAL-STATE " + initialState);
+
+        sb.setLength(0);
+        sb.append("FINAL-STATES");
+        for (int s = 0; s < stateCount; s++) {
+            if (finalStates.contains("S" + s)) {
+                sb.append(" S").append(s);
+            }
+        }
+        commands.add(sb.toString());
+
+        sb.setLength(0);
+        int inCommand = 0;
+        for (int s = 0; s < stateCount; s++) {
+            for (int a = 0; a < symbolCount; a++) {
+                sb.append(inCommand == 0 ? "TRANSITIONS " : ", ");
+                sb.append(ALPHABET.charAt(a)).append(" S").append(s).append(" S").append(targets[s * symbolCount + a]);
+                if (++inCommand == TRANSITIONS_PER_COMMAND) {
+                    commands.add(sb.toString());
+                    sb.setLength(0);
+                    inCommand = 0;
+                }
+            }
+        }
+        if (inCommand > 0) {
+            commands.add(sb.toString());
+        }
+        return commands;
+    }
+
+    /** Writes the definition as a text file accepted by LOAD. */
+    void writeText(Path path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (String command : commands()) {
+                writer.println(command + ";");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command log written by a background thread. Lines go into a bounded ring
+ * buffer and are written in batches; the file is flushed once a batch size is
+ * reached or the flush interval has passed, and always on close. In
+ * non-blocking mode lines that do not fit into a full buffer are dropped and
+ * counted instead of stalling the caller.
+ */
+final class AsyncLog implements Closeable {
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_BATCH_SIZE = 1024;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+
+    // Queued by close to tell the writer thread to finish; compared by identity
+    private static final String STOP = new String("STOP");
+
+    private final ArrayBlockingQueue<String> queue;
+    private final Writer writer;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final boolean blocking;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainer;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    AsyncLog(String fileName, int capacity, int batchSize, long flushIntervalMillis, boolean blocking)
+            throws IOException {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.blocking = blocking;
+        this.drainer = new Thread(this::drain, "fsm-log-writer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    void log(String line) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (blocking) {
+            try {
+                queue.put(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+            }
+        } else if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    boolean isBlocking() {
+        return blocking;
+    }
+
+    /** Writes everything still queued, flushes and closes the file. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(STOP);
+                drainer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // Releases any logging thread that raced with close and is blocked on a full queue
+        queue.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(batchSize);
+        int pending = 0;
+        long lastFlush = System.nanoTime();
+        boolean stopping = false;
+        while (!stopping) {
+            String first;
+            try {
+                first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Only close stops the writer thread
+                continue;
+            }
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (String line : batch) {
+                    if (line == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    write(line);
+                    pending++;
+                }
+                batch.clear();
+            }
+            long now = System.nanoTime();
+            if (pending > 0 && (first == null || stopping || pending >= batchSize
+                    || now - lastFlush >= TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis))) {
+                flush();
+                pending = 0;
+                lastFlush = now;
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // After the first I/O error lines are counted as dropped so callers never block on a dead writer
+    private void write(String line) {
+        if (failure != null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            writer.write(line);
+            writer.write(System.lineSeparator());
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void flush() {
+        if (failure != null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Runs one input string per line of a file against an immutable CompiledFSM
+ * snapshot. Lines are read in blocks, each block is classified in parallel on
+ * the common fork-join pool and the YES/NO results are written in input order.
+ * A nondeterministic definition is run on its LazyDFA instead, one line after
+ * the other since the DFA cache is not thread safe.
+ *
+ * With -prefix the lines of a block are sorted and cut into one run of sorted
+ * lines per task; each line starts from the state its run reached at the
+ * longest prefix it shares with the line before, and with a PrefixCache from
+ * the longest cached prefix if that is longer. The states along the previous
+ * line are kept in path, so reusing a prefix costs nothing but the compare.
+ */
+final class BatchExecutor {
+    private static final int BLOCK_LINES = 1 << 18;
+    // Fewest sorted lines given to one -prefix task
+    private static final int MIN_RUN_LINES = 4096;
+    private static final int UNKNOWN = -2;
+    // Lines of each block also run without -prefix, to estimate the time saved
+    private static final int SAMPLE_LINES = 8192;
+    private static final byte[] YES = "YES\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NO = "NO\n".getBytes(StandardCharsets.US_ASCII);
+
+    long total;
+    long accepted;
+    long rejected;
+    // Inputs stopped by an undeclared symbol or a missing transition, reported as NO
+    long failed;
+    long elapsedNanos;
+    // Counted with -prefix: symbols in all lines, those skipped by a shared or cached prefix,
+    // and the time spent sorting the blocks and running the sorted lines
+    long symbols;
+    long sharedSymbols;
+    long cachedSymbols;
+    long sortNanos;
+    long runNanos;
+    // Estimate for running the blocks without -prefix, see savedMillis
+    long estimatedNanos;
+
+    // Exactly one of fsm and nfa is set
+    private final CompiledFSM fsm;
+    private final LazyDFA nfa;
+    private final ExecutionStats stats;
+    private final boolean sharePrefixes;
+    // Null unless -cache was given
+    private final PrefixCache cache;
+
+    BatchExecutor(CompiledFSM fsm, ExecutionStats stats) {
+        this.fsm = fsm;
+        this.nfa = null;
+        this.stats = stats;
+        this.sharePrefixes = false;
+        this.cache = null;
+    }
+
+    BatchExecutor(LazyDFA nfa) {
+        this.fsm = null;
+        this.nfa = nfa;
+        this.stats = null;
+        this.sharePrefixes = false;
+        this.cache = null;
+    }
+
+    /** The -prefix mode; cache may be null. Prefix runs are not counted by STATS. */
+    BatchExecutor(CompiledFSM fsm, PrefixCache cache) {
+        this.fsm = fsm;
+        this.nfa = null;
+        this.stats = null;
+        this.sharePrefixes = true;
+        this.cache = cache;
+    }
+
+    void execute(Path input, Path output) throws IOException {
+        long start = System.nanoTime();
+        String[] block = new String[BLOCK_LINES];
+        byte[] verdicts = new byte[BLOCK_LINES];
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 16)) {
+            boolean counted = stats != null && stats.isEnabled();
+            int count;
+            while ((count = readBlock(reader, block)) > 0) {
+                final int n = count;
+                if (nfa != null) {
+                    for (int i = 0; i < n; i++) {
+                        verdicts[i] = (byte) nfa.classify(block[i]);
+                    }
+                } else if (sharePrefixes) {
+                    classifySorted(block, n, verdicts);
+                } else {
+                    IntStream.range(0, n).parallel()
+                            .forEach(i -> verdicts[i] = (byte) (counted
+                                    ? fsm.verdict(stats.run(fsm, block[i]), block[i].length())
+                                    : fsm.classify(block[i])));
+                }
+                for (int i = 0; i < n; i++) {
+                    switch (verdicts[i]) {
+                        case CompiledFSM.ACCEPTED:
+                            accepted++;
+                            out.write(YES);
+                            break;
+                        case CompiledFSM.REJECTED:
+                            rejected++;
+                            out.write(NO);
+                            break;
+                        default:
+                            failed++;
+                            out.write(NO);
+                    }
+                    block[i] = null;
+                }
+                total += n;
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void classifySorted(String[] block, int n, byte[] verdicts) {
+        long start = System.nanoTime();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        // Many batch files are sorted already, and checking costs far less than sorting
+        boolean sorted = true;
+        for (int i = 1; i < n && sorted; i++) {
+            sorted = block[i - 1].compareTo(block[i]) <= 0;
+        }
+        if (!sorted) {
+            Integer[] boxed = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                boxed[i] = i;
+            }
+            Arrays.parallelSort(boxed, (x, y) -> block[x].compareTo(block[y]));
+            for (int i = 0; i < n; i++) {
+                order[i] = boxed[i];
+            }
+        }
+        long runStart = System.nanoTime();
+        sortNanos += runStart - start;
+
+        int runs = Math.max(1, Math.min(n / MIN_RUN_LINES, 4 * Runtime.getRuntime().availableProcessors()));
+        long[][] counts = new long[runs][];
+        IntStream.range(0, runs).parallel()
+                .forEach(r -> counts[r] = classifyRun(block, order, n * r / runs, n * (r + 1) / runs, verdicts));
+        for (long[] count : counts) {
+            symbols += count[0];
+            sharedSymbols += count[1];
+            cachedSymbols += count[2];
+        }
+        long runEnd = System.nanoTime();
+        runNanos += runEnd - runStart;
+
+        // A slice of SAMPLE_LINES lines is run again the usual way, to estimate what the block would have taken
+        int sample = Math.min(n, SAMPLE_LINES);
+        IntStream.range(0, sample).parallel().forEach(i -> fsm.classify(block[i]));
+        estimatedNanos += (System.nanoTime() - runEnd) * n / sample;
+    }
+
+    // Classifies the lines order[from, to); returns their symbol, shared and cached symbol counts
+    private long[] classifyRun(String[] block, int[] order, int from, int to, byte[] verdicts) {
+        long symbolCount = 0;
+        long shared = 0;
+        long cached = 0;
+        long seed = cache == null ? 0 : PrefixCache.seed(fsm);
+        // path[d] is the state after d symbols of the previous line, UNKNOWN where a cache hit skipped it
+        int[] path = new int[64];
+        long[] hashes = new long[cache == null ? 0 : 64];
+        path[0] = fsm.initialState;
+        String previous = "";
+        int valid = 0;
+
+        for (int k = from; k < to; k++) {
+            String line = block[order[k]];
+            int length = line.length();
+            if (path.length <= length) {
+                path = Arrays.copyOf(path, Math.max(2 * path.length, length + 1));
+            }
+            int depth = Math.min(commonPrefix(previous, line), valid);
+            while (path[depth] == UNKNOWN) {
+                depth--;
+            }
+            shared += depth;
+            int state = path[depth];
+
+            if (cache != null) {
+                if (hashes.length <= length) {
+                    hashes = new long[Math.max(2 * hashes.length, length + 1)];
+                }
+                long h = seed;
+                hashes[0] = h;
+                for (int i = 0; i < length; i++) {
+                    h = PrefixCache.extend(h, Character.toUpperCase(line.charAt(i)));
+                    hashes[i + 1] = h;
+                }
+                for (int d = length / PrefixCache.STRIDE * PrefixCache.STRIDE; d > depth; d -= PrefixCache.STRIDE) {
+                    int hit = cache.get(hashes[d]);
+                    if (hit != CompiledFSM.NONE) {
+                        Arrays.fill(path, depth + 1, d, UNKNOWN);
+                        cached += d - depth;
+                        depth = d;
+                        state = hit;
+                        path[d] = hit;
+                        break;
+                    }
+                }
+            }
+
+            int start = depth;
+            for (; depth < length; depth++) {
+                int symbolClass = fsm.charClass(line.charAt(depth));
+                if (symbolClass == CompiledFSM.NONE) {
+                    break;
+                }
+                int target = fsm.nextInClass(state, symbolClass);
+                if (target == CompiledFSM.NONE) {
+                    break;
+                }
+                state = target;
+                path[depth + 1] = state;
+            }
+            if (cache != null) {
+                for (int d = (start / PrefixCache.STRIDE + 1) * PrefixCache.STRIDE; d <= depth; d += PrefixCache.STRIDE) {
+                    cache.put(hashes[d], path[d]);
+                }
+            }
+
+            verdicts[order[k]] = (byte) fsm.verdict(((long) depth << 32) | (state & 0xFFFFFFFFL), length);
+            symbolCount += length;
+            previous = line;
+            valid = depth;
+        }
+        return new long[] {symbolCount, shared, cached};
+    }
+
+    // Binary search on regionMatches, which compares whole ranges at once, instead of a loop over the chars
+    private static int commonPrefix(String a, String b) {
+        int low = 0;
+        int high = Math.min(a.length(), b.length());
+        if (a.regionMatches(0, b, 0, high)) {
+            return high;
+        }
+        // The first low chars match, the first high do not
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            if (a.regionMatches(low, b, low, mid - low)) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Time the blocks would have taken without -prefix, estimated from the
+     * sampled lines, minus what sorting and running them took. Negative when
+     * sharing prefixes did not pay off.
+     */
+    double savedMillis() {
+        return (estimatedNanos - sortNanos - runNanos) / 1e6;
+    }
+
+    private static int readBlock(BufferedReader reader, String[] block) throws IOException {
+        int n = 0;
+        String line;
+        while (n < block.length && (line = reader.readLine()) != null) {
+            block[n++] = line.trim();
+        }
+        return n;
+    }
+
+    double stringsPerSecond() {
+        return elapsedNanos == 0 ? 0 : total * 1e9 / elapsedNanos;
+    }
+}
@@ -0,0 +1,580 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Mutable FSM definition for machines with millions of states, used after
+ * STORAGE COMPACT. State names are kept as UTF-8 in one byte arena and found
+ * through an open addressing index of state ids; transitions are one int
+ * table indexed by state and symbol, final states and states with transitions
+ * are bitsets. A state costs its name, about 14 bytes and 4 bytes per symbol,
+ * where the HashMap based definition needs several hundred bytes.
+ *
+ * FSMMain keeps working on its collection fields: symbols(), states(),
+ * finalStates() and transitions() are views backed by the arrays. Adding a
+ * transition, a final state or a transition map for a state not declared yet
+ * declares it, as CompiledFSM.build gives every name it sees an id. Nothing
+ * can be removed; CLEAR starts a new CompactFSM. compile() creates the
+ * CompiledFSM directly from the arrays.
+ */
+final class CompactFSM {
+    private static final int NONE = CompiledFSM.NONE;
+    private static final int INITIAL_STATES = 64;
+    // Longest array the JVM allocates on all common platforms
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+    // The name index must stay at most half full at a power of two length
+    private static final int MAX_STATES = 1 << 29;
+
+    // Symbols in declaration order; symbolIds[c] is the id of c, or NONE
+    private char[] symbolChars = new char[0];
+    private int[] symbolIds = new int[0];
+    // Length of a table row, grown ahead of the symbol count so adding symbols rarely moves the table
+    private int rowLength = 0;
+
+    private int stateCount;
+    // The name of state s is names[nameOffsets[s], nameOffsets[s + 1])
+    private byte[] names = new byte[16 * INITIAL_STATES];
+    private int[] nameOffsets = new int[INITIAL_STATES + 1];
+    // State ids by name hash, NONE for a free slot; at most half full
+    private int[] index = emptyIndex(2 * INITIAL_STATES);
+    // [state * rowLength + symbol] is the target state, or NONE
+    private int[] table = new int[0];
+    private long[] finalBits = new long[1];
+    private long[] hasTransitionsBits = new long[1];
+    private int finalCount;
+    private int withTransitionsCount;
+
+    private final Set<Character> symbolsView = new SymbolsView();
+    private final Set<String> statesView = new StatesView();
+    private final Set<String> finalStatesView = new FinalStatesView();
+    private final Map<String, Map<Character, String>> transitionsView = new TransitionsView();
+
+    Set<Character> symbols() {
+        return symbolsView;
+    }
+
+    Set<String> states() {
+        return statesView;
+    }
+
+    Set<String> finalStates() {
+        return finalStatesView;
+    }
+
+    Map<String, Map<Character, String>> transitions() {
+        return transitionsView;
+    }
+
+    int stateCount() {
+        return stateCount;
+    }
+
+    int symbolCount() {
+        return symbolChars.length;
+    }
+
+    int transitionCount() {
+        int count = 0;
+        for (int s = 0; s < stateCount; s++) {
+            for (int a = 0; a < symbolChars.length; a++) {
+                if (table[s * rowLength + a] != NONE) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Heap used by the arrays, allocated but unused capacity included. */
+    long sizeInBytes() {
+        return names.length + 4L * nameOffsets.length + 4L * index.length + 4L * table.length
+                + 8L * (finalBits.length + hasTransitionsBits.length) + 2L * symbolChars.length + 4L * symbolIds.length;
+    }
+
+    /**
+     * The definition as a CompiledFSM, symbols in character order like
+     * CompiledFSM.build. The name arena is shared: it is only ever appended to,
+     * and replaced when it grows, so the compiled machine keeps seeing the
+     * names it was built with.
+     */
+    CompiledFSM compile(String initialState) {
+        int initial = initialState == null ? NONE : intern(initialState);
+        char[] sorted = symbolChars.clone();
+        Arrays.sort(sorted);
+        int k = sorted.length;
+        int[] compiledTable = new int[stateCount * k];
+        int transitionCount = 0;
+        for (int s = 0; s < stateCount; s++) {
+            for (int j = 0; j < k; j++) {
+                int target = table[s * rowLength + symbolIds[sorted[j]]];
+                compiledTable[s * k + j] = target;
+                if (target != NONE) {
+                    transitionCount++;
+                }
+            }
+        }
+        int words = (stateCount + 63) >>> 6;
+        return CompiledFSM.compact(stateCount, ByteBuffer.wrap(names, 0, nameOffsets[stateCount]).slice(),
+                IntBuffer.wrap(nameOffsets, 0, stateCount + 1).slice(), sorted, compiledTable,
+                Arrays.copyOf(finalBits, words), Arrays.copyOf(hasTransitionsBits, words), initial, transitionCount);
+    }
+
+    int symbolId(char c) {
+        return c < symbolIds.length ? symbolIds[c] : NONE;
+    }
+
+    private boolean addSymbol(char c) {
+        if (symbolId(c) != NONE) {
+            return false;
+        }
+        if (symbolChars.length >= rowLength) {
+            growRows(symbolChars.length + 1);
+        }
+        if (c >= symbolIds.length) {
+            int oldLength = symbolIds.length;
+            symbolIds = Arrays.copyOf(symbolIds, c + 1);
+            Arrays.fill(symbolIds, oldLength, symbolIds.length, NONE);
+        }
+        int id = symbolChars.length;
+        symbolChars = Arrays.copyOf(symbolChars, id + 1);
+        symbolChars[id] = c;
+        symbolIds[c] = id;
+        return true;
+    }
+
+    int stateId(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int mask = index.length - 1;
+        for (int slot = hash(bytes) & mask; ; slot = (slot + 1) & mask) {
+            int id = index[slot];
+            if (id == NONE || nameEquals(id, bytes)) {
+                return id;
+            }
+        }
+    }
+
+    // The id of name, declaring it as a new state if needed
+    private int intern(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int mask = index.length - 1;
+        int slot = hash(bytes) & mask;
+        for (; index[slot] != NONE; slot = (slot + 1) & mask) {
+            if (nameEquals(index[slot], bytes)) {
+                return index[slot];
+            }
+        }
+
+        int id = stateCount;
+        int start = nameOffsets[id];
+        long nameEnd = (long) start + bytes.length;
+        if (nameEnd > MAX_ARRAY) {
+            throw new IllegalStateException("state names larger than 2 GB do not fit in compact storage");
+        }
+        if (id + 1 >= nameOffsets.length) {
+            // Near the array size limit the spare row length goes first
+            int rows = (long) (id + 1) * rowLength > MAX_ARRAY ? symbolChars.length : rowLength;
+            int capacity = stateCapacity(id + 1, rows);
+            resizeTable(capacity, rows);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            finalBits = Arrays.copyOf(finalBits, (capacity + 63) >>> 6);
+            hasTransitionsBits = Arrays.copyOf(hasTransitionsBits, (capacity + 63) >>> 6);
+        }
+        if (nameEnd > names.length) {
+            names = Arrays.copyOf(names, (int) Math.min(MAX_ARRAY, Math.max(2L * names.length, nameEnd)));
+        }
+        System.arraycopy(bytes, 0, names, start, bytes.length);
+        nameOffsets[id + 1] = start + bytes.length;
+        stateCount++;
+
+        index[slot] = id;
+        if (2 * stateCount > index.length) {
+            rehash(2 * index.length);
+        }
+        return id;
+    }
+
+    String stateName(int state) {
+        int start = nameOffsets[state];
+        return new String(names, start, nameOffsets[state + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int state, byte[] bytes) {
+        int start = nameOffsets[state];
+        return nameOffsets[state + 1] - start == bytes.length
+                && Arrays.equals(names, start, start + bytes.length, bytes, 0, bytes.length);
+    }
+
+    private static int hash(byte[] bytes) {
+        return hash(bytes, 0, bytes.length);
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + bytes[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int length) {
+        index = emptyIndex(length);
+        int mask = length - 1;
+        for (int id = 0; id < stateCount; id++) {
+            int slot = hash(names, nameOffsets[id], nameOffsets[id + 1]) & mask;
+            while (index[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = id;
+        }
+    }
+
+    private static int[] emptyIndex(int length) {
+        int[] index = new int[length];
+        Arrays.fill(index, NONE);
+        return index;
+    }
+
+    // The state capacity after the next growth: half as much again, as far as a table with rows allows
+    private int stateCapacity(int needed, int rows) {
+        int capacity = nameOffsets.length - 1;
+        long limit = Math.min(MAX_STATES, MAX_ARRAY / Math.max(1, rows));
+        if (needed > limit) {
+            throw new IllegalStateException("compact storage holds at most " + limit + " states with "
+                    + rows + " symbols");
+        }
+        return (int) Math.min(limit, Math.max(needed, capacity + (capacity >> 1)));
+    }
+
+    /**
+     * Makes room for needed symbols per row, half as many again as the
+     * current row length. Near the array size limit the row only grows to
+     * needed, and the state capacity shrinks to fit as long as the declared
+     * states keep their rows.
+     */
+    private void growRows(int needed) {
+        int capacity = nameOffsets.length - 1;
+        long rows = Math.max(needed, Math.max(4, rowLength + (rowLength >> 1)));
+        if ((long) capacity * rows > MAX_ARRAY) {
+            rows = needed;
+            capacity = Math.max(stateCount, Math.min(capacity, MAX_ARRAY / needed));
+        }
+        resizeTable(capacity, (int) rows);
+        if (capacity + 1 != nameOffsets.length) {
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+    }
+
+    private void resizeTable(int stateCapacity, int newRowLength) {
+        long size = (long) stateCapacity * newRowLength;
+        if (size > MAX_ARRAY) {
+            throw new IllegalStateException("a transition table of " + stateCapacity + " states with "
+                    + newRowLength + " symbols per row does not fit in compact storage");
+        }
+        int[] newTable = new int[(int) size];
+        Arrays.fill(newTable, NONE);
+        for (int s = 0; s < stateCount; s++) {
+            System.arraycopy(table, s * rowLength, newTable, s * newRowLength, symbolChars.length);
+        }
+        table = newTable;
+        rowLength = newRowLength;
+    }
+
+    private boolean isFinal(int state) {
+        return (finalBits[state >>> 6] & (1L << state)) != 0;
+    }
+
+    private boolean hasTransitions(int state) {
+        return (hasTransitionsBits[state >>> 6] & (1L << state)) != 0;
+    }
+
+    private void markHasTransitions(int state) {
+        if (!hasTransitions(state)) {
+            hasTransitionsBits[state >>> 6] |= 1L << state;
+            withTransitionsCount++;
+        }
+    }
+
+    // Iterates the ids accepted by a filter, mapped to a value
+    private abstract class IdIterator<T> implements Iterator<T> {
+        private final int limit;
+        private int next;
+
+        IdIterator(int limit) {
+            this.limit = limit;
+            this.next = advance(0);
+        }
+
+        abstract boolean accept(int id);
+
+        abstract T value(int id);
+
+        private int advance(int from) {
+            while (from < limit && !accept(from)) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < limit;
+        }
+
+        @Override
+        public T next() {
+            if (next >= limit) {
+                throw new NoSuchElementException();
+            }
+            T value = value(next);
+            next = advance(next + 1);
+            return value;
+        }
+    }
+
+    private final class SymbolsView extends AbstractSet<Character> {
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Character && symbolId((Character) o) != NONE;
+        }
+
+        @Override
+        public boolean add(Character c) {
+            return addSymbol(c);
+        }
+
+        @Override
+        public int size() {
+            return symbolChars.length;
+        }
+
+        @Override
+        public Iterator<Character> iterator() {
+            return new IdIterator<Character>(symbolChars.length) {
+                @Override
+                boolean accept(int id) {
+                    return true;
+                }
+
+                @Override
+                Character value(int id) {
+                    return symbolChars[id];
+                }
+            };
+        }
+    }
+
+    private final class StatesView extends AbstractSet<String> {
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && stateId((String) o) != NONE;
+        }
+
+        @Override
+        public boolean add(String name) {
+            int before = stateCount;
+            intern(name);
+            return stateCount > before;
+        }
+
+        @Override
+        public int size() {
+            return stateCount;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new IdIterator<String>(stateCount) {
+                @Override
+                boolean accept(int id) {
+                    return true;
+                }
+
+                @Override
+                String value(int id) {
+                    return stateName(id);
+                }
+            };
+        }
+    }
+
+    private final class FinalStatesView extends AbstractSet<String> {
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            int id = stateId((String) o);
+            return id != NONE && isFinal(id);
+        }
+
+        @Override
+        public boolean add(String name) {
+            int id = intern(name);
+            if (isFinal(id)) {
+                return false;
+            }
+            finalBits[id >>> 6] |= 1L << id;
+            finalCount++;
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return finalCount;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new IdIterator<String>(stateCount) {
+                @Override
+                boolean accept(int id) {
+                    return isFinal(id);
+                }
+
+                @Override
+                String value(int id) {
+                    return stateName(id);
+                }
+            };
+        }
+    }
+
+    // States with transitions, like the keys of the HashMap definition
+    private final class TransitionsView extends AbstractMap<String, Map<Character, String>> {
+        @Override
+        public Map<Character, String> get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            int id = stateId((String) key);
+            return id != NONE && hasTransitions(id) ? new Row(id) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        /** Copies the transitions of value into the row of key; returns null like a new key would. */
+        @Override
+        public Map<Character, String> put(String key, Map<Character, String> value) {
+            int id = intern(key);
+            markHasTransitions(id);
+            new Row(id).putAll(value);
+            return null;
+        }
+
+        @Override
+        public Map<Character, String> computeIfAbsent(String key,
+                Function<? super String, ? extends Map<Character, String>> mappingFunction) {
+            int id = intern(key);
+            markHasTransitions(id);
+            return new Row(id);
+        }
+
+        @Override
+        public int size() {
+            return withTransitionsCount;
+        }
+
+        @Override
+        public Set<Entry<String, Map<Character, String>>> entrySet() {
+            return new AbstractSet<Entry<String, Map<Character, String>>>() {
+                @Override
+                public int size() {
+                    return withTransitionsCount;
+                }
+
+                @Override
+                public Iterator<Entry<String, Map<Character, String>>> iterator() {
+                    return new IdIterator<Entry<String, Map<Character, String>>>(stateCount) {
+                        @Override
+                        boolean accept(int id) {
+                            return hasTransitions(id);
+                        }
+
+                        @Override
+                        Entry<String, Map<Character, String>> value(int id) {
+                            return new SimpleImmutableEntry<>(stateName(id), new Row(id));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    // The transitions of one state, keyed by symbol
+    private final class Row extends AbstractMap<Character, String> {
+        private final int state;
+
+        Row(int state) {
+            this.state = state;
+        }
+
+        private int target(Object key) {
+            if (!(key instanceof Character)) {
+                return NONE;
+            }
+            int symbol = symbolId((Character) key);
+            return symbol == NONE ? NONE : table[state * rowLength + symbol];
+        }
+
+        @Override
+        public String get(Object key) {
+            int target = target(key);
+            return target == NONE ? null : stateName(target);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return target(key) != NONE;
+        }
+
+        /** Transitions on undeclared symbols are dropped, as CompiledFSM.build drops them. */
+        @Override
+        public String put(Character symbol, String toState) {
+            int target = intern(toState);
+            int a = symbolId(symbol);
+            if (a == NONE) {
+                return null;
+            }
+            int previous = table[state * rowLength + a];
+            table[state * rowLength + a] = target;
+            return previous == NONE ? null : stateName(previous);
+        }
+
+        @Override
+        public Set<Entry<Character, String>> entrySet() {
+            return new AbstractSet<Entry<Character, String>>() {
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (int a = 0; a < symbolChars.length; a++) {
+                        if (table[state * rowLength + a] != NONE) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+
+                @Override
+                public Iterator<Entry<Character, String>> iterator() {
+                    return new IdIterator<Entry<Character, String>>(symbolChars.length) {
+                        @Override
+                        boolean accept(int a) {
+                            return table[state * rowLength + a] != NONE;
+                        }
+
+                        @Override
+                        Entry<Character, String> value(int a) {
+                            return new SimpleImmutableEntry<>(symbolChars[a], stateName(table[state * rowLength + a]));
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Immutable, array based form of an FSM definition used by EXECUTE.
+ * States and symbols are mapped to dense int ids, transitions are kept in one
+ * flat table and final states in a bitset, so running a machine does no
+ * hashing and no allocation.
+ *
+ * Symbols that every state treats alike (all digits, say) share one symbol
+ * class, and the table has a column per class rather than per symbol. Input
+ * characters are mapped straight to their class by one array that also folds
+ * in EXECUTE's upper-casing, so the run loops do a single lookup per character
+ * before indexing the table.
+ */
+final class CompiledFSM {
+    static final int NONE = -1;
+
+    // Verdicts returned by classify
+    static final int REJECTED = 0;
+    static final int ACCEPTED = 1;
+    static final int FAILED = 2;
+
+    // States buffered per step when writing a path
+    private static final int PATH_CHUNK = 8192;
+    // Largest stride table built, in entries (kept cache-sized), and the longest stride tried
+    static final int MAX_STRIDE_ENTRIES = 1 << 16;
+    static final int MAX_STRIDE = 4;
+    // Shorter inputs are not worth building the stride table for
+    private static final int STRIDE_MIN_INPUT = 32;
+
+    final char[] symbolChars;
+    final int initialState;
+    final int transitionCount;
+
+    private final int stateCount;
+    // Either stateNames is set, or names holds UTF-8 names addressed by nameOffsets
+    private final String[] stateNames;
+    private final ByteBuffer names;
+    private final IntBuffer nameOffsets;
+    // symbolIds[c] is the id of symbol c, or NONE when c is not declared
+    private final int[] symbolIds;
+    // symbolClasses[symbol] is the class of the symbol
+    private final int[] symbolClasses;
+    // charSymbols[c] and charClasses[c] are the symbol and class of the upper case of input character c,
+    // or NONE when it is not declared; both have the same length
+    private final int[] charSymbols;
+    private final int[] charClasses;
+    // [state * classCount + class] is the target state, or NONE; exactly one of the two is set
+    private final int[] table;
+    private final IntBuffer mappedTable;
+    private final long[] finalBits;
+    private final long[] hasTransitionsBits;
+    private final int symbolCount;
+    private final int classCount;
+    // Created by the first instrumented run, see counters()
+    private volatile TransitionCounters counters;
+    // Created by the first long enough run without a path, see strideTable()
+    private volatile StrideTable strideTable;
+    // Created by the first EXECUTE or ANALYZE, see analysis()
+    private volatile GraphAnalysis analysis;
+    // Set by COMPILE -matcher or when a saved matcher is found, see MatcherGenerator
+    private volatile FSMMatcher matcher;
+    // Computed by the first fingerprint() call, 0 until then
+    private volatile long fingerprint;
+
+    private CompiledFSM(int stateCount, String[] stateNames, ByteBuffer names, IntBuffer nameOffsets,
+                        char[] symbolChars, int[] symbolClasses, int classCount, int[] table, IntBuffer mappedTable,
+                        long[] finalBits, long[] hasTransitionsBits, int initialState, int transitionCount) {
+        this.stateCount = stateCount;
+        this.stateNames = stateNames;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.symbolChars = symbolChars;
+        this.symbolIds = symbolIds(symbolChars);
+        this.symbolClasses = symbolClasses;
+        this.classCount = classCount;
+        this.charSymbols = charSymbols(symbolIds);
+        this.charClasses = charClasses(charSymbols, symbolClasses);
+        this.table = table;
+        this.mappedTable = mappedTable;
+        this.finalBits = finalBits;
+        this.hasTransitionsBits = hasTransitionsBits;
+        this.initialState = initialState;
+        this.transitionCount = transitionCount;
+        this.symbolCount = symbolChars.length;
+    }
+
+    /**
+     * Wraps a definition read by FSMBinaryFormat. The transition table, already
+     * indexed by class, and the state names stay in the given buffers and are
+     * never copied to the heap.
+     */
+    static CompiledFSM mapped(int stateCount, ByteBuffer names, IntBuffer nameOffsets, char[] symbolChars,
+                              int[] symbolClasses, int classCount, IntBuffer table, long[] finalBits,
+                              long[] hasTransitionsBits, int initialState, int transitionCount) {
+        return new CompiledFSM(stateCount, null, names, nameOffsets, symbolChars, symbolClasses, classCount,
+                null, table, finalBits, hasTransitionsBits, initialState, transitionCount);
+    }
+
+    /**
+     * Wraps the arrays of a CompactFSM, the state names staying in its arena.
+     * table is indexed by symbol and is only kept when no two symbols share a class.
+     */
+    static CompiledFSM compact(int stateCount, ByteBuffer names, IntBuffer nameOffsets, char[] symbolChars,
+                               int[] table, long[] finalBits, long[] hasTransitionsBits,
+                               int initialState, int transitionCount) {
+        return withClasses(stateCount, null, names, nameOffsets, symbolChars, table,
+                finalBits, hasTransitionsBits, initialState, transitionCount);
+    }
+
+    static CompiledFSM build(Set<Character> symbols, Set<String> states, String initialState,
+                             Set<String> finalStates, Map<String, Map<Character, String>> transitions) {
+        // Transitions and final states may name states missing from the declared set
+        // (e.g. old compiled files), so every name that appears gets an id.
+        TreeSet<String> allStates = new TreeSet<>(states);
+        if (initialState != null) {
+            allStates.add(initialState);
+        }
+        allStates.addAll(finalStates);
+        for (Map.Entry<String, Map<Character, String>> entry : transitions.entrySet()) {
+            allStates.add(entry.getKey());
+            allStates.addAll(entry.getValue().values());
+        }
+        String[] stateNames = allStates.toArray(new String[0]);
+        Map<String, Integer> stateIds = new HashMap<>();
+        for (int i = 0; i < stateNames.length; i++) {
+            stateIds.put(stateNames[i], i);
+        }
+
+        char[] symbolChars = new char[symbols.size()];
+        int n = 0;
+        for (Character c : new TreeSet<>(symbols)) {
+            symbolChars[n++] = c;
+        }
+        int[] symbolIds = symbolIds(symbolChars);
+
+        int[] table = new int[stateNames.length * symbolChars.length];
+        Arrays.fill(table, NONE);
+        long[] hasTransitionsBits = new long[(stateNames.length + 63) >>> 6];
+        int transitionCount = 0;
+        for (Map.Entry<String, Map<Character, String>> entry : transitions.entrySet()) {
+            int from = stateIds.get(entry.getKey());
+            setBit(hasTransitionsBits, from);
+            for (Map.Entry<Character, String> t : entry.getValue().entrySet()) {
+                char c = t.getKey();
+                if (c >= symbolIds.length || symbolIds[c] == NONE) {
+                    continue;
+                }
+                table[from * symbolChars.length + symbolIds[c]] = stateIds.get(t.getValue());
+                transitionCount++;
+            }
+        }
+
+        long[] finalBits = new long[(stateNames.length + 63) >>> 6];
+        for (String state : finalStates) {
+            setBit(finalBits, stateIds.get(state));
+        }
+
+        int initial = initialState == null ? NONE : stateIds.get(initialState);
+        return withClasses(stateNames.length, stateNames, null, null, symbolChars, table,
+                finalBits, hasTransitionsBits, initial, transitionCount);
+    }
+
+    // Splits the symbols of a table indexed by symbol into classes and keeps the table indexed by class
+    private static CompiledFSM withClasses(int stateCount, String[] stateNames, ByteBuffer names,
+                                           IntBuffer nameOffsets, char[] symbolChars, int[] symbolTable,
+                                           long[] finalBits, long[] hasTransitionsBits,
+                                           int initialState, int transitionCount) {
+        int symbolCount = symbolChars.length;
+        int[] symbolClasses = symbolClasses(symbolTable, stateCount, symbolCount);
+        int classCount = 0;
+        int[] representative = new int[symbolCount];
+        for (int a = 0; a < symbolCount; a++) {
+            if (symbolClasses[a] == classCount) {
+                representative[classCount++] = a;
+            }
+        }
+        int[] table = symbolTable;
+        if (classCount < symbolCount) {
+            table = new int[stateCount * classCount];
+            for (int s = 0; s < stateCount; s++) {
+                for (int j = 0; j < classCount; j++) {
+                    table[s * classCount + j] = symbolTable[s * symbolCount + representative[j]];
+                }
+            }
+        }
+        return new CompiledFSM(stateCount, stateNames, names, nameOffsets, symbolChars, symbolClasses, classCount,
+                table, null, finalBits, hasTransitionsBits, initialState, transitionCount);
+    }
+
+    /**
+     * Class of every symbol of a table indexed by symbol: symbols whose columns
+     * are equal share a class. Classes are numbered in the order of their first
+     * symbol. Columns are compared only when their hashes agree.
+     */
+    private static int[] symbolClasses(int[] symbolTable, int stateCount, int symbolCount) {
+        long[] hashes = new long[symbolCount];
+        Arrays.fill(hashes, 0xcbf29ce484222325L);
+        for (int s = 0; s < stateCount; s++) {
+            int row = s * symbolCount;
+            for (int a = 0; a < symbolCount; a++) {
+                hashes[a] = mix(hashes[a], symbolTable[row + a]);
+            }
+        }
+        int[] classes = new int[symbolCount];
+        int[] representative = new int[symbolCount];
+        Map<Long, Integer> classByHash = new HashMap<>();
+        int classCount = 0;
+        for (int a = 0; a < symbolCount; a++) {
+            Integer j = classByHash.get(hashes[a]);
+            if (j != null && !sameColumn(symbolTable, stateCount, symbolCount, a, representative[j])) {
+                // Equal hashes of different columns: look through all classes
+                j = null;
+                for (int k = 0; k < classCount && j == null; k++) {
+                    if (sameColumn(symbolTable, stateCount, symbolCount, a, representative[k])) {
+                        j = k;
+                    }
+                }
+            }
+            if (j == null) {
+                j = classCount++;
+                representative[j] = a;
+                classByHash.putIfAbsent(hashes[a], j);
+            }
+            classes[a] = j;
+        }
+        return classes;
+    }
+
+    private static boolean sameColumn(int[] symbolTable, int stateCount, int symbolCount, int a, int b) {
+        for (int i = 0; i < stateCount * symbolCount; i += symbolCount) {
+            if (symbolTable[i + a] != symbolTable[i + b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // charSymbols[c] for every c whose upper case is a declared symbol, up to the largest such c
+    private static int[] charSymbols(int[] symbolIds) {
+        int length = 0;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            char upper = Character.toUpperCase((char) c);
+            if (upper < symbolIds.length && symbolIds[upper] != NONE) {
+                length = c + 1;
+            }
+        }
+        int[] charSymbols = new int[length];
+        for (int c = 0; c < length; c++) {
+            char upper = Character.toUpperCase((char) c);
+            charSymbols[c] = upper < symbolIds.length ? symbolIds[upper] : NONE;
+        }
+        return charSymbols;
+    }
+
+    private static int[] charClasses(int[] charSymbols, int[] symbolClasses) {
+        int[] charClasses = new int[charSymbols.length];
+        for (int c = 0; c < charSymbols.length; c++) {
+            charClasses[c] = charSymbols[c] != NONE ? symbolClasses[charSymbols[c]] : NONE;
+        }
+        return charClasses;
+    }
+
+    private static int[] symbolIds(char[] symbolChars) {
+        int maxChar = -1;
+        for (char c : symbolChars) {
+            maxChar = Math.max(maxChar, c);
+        }
+        int[] symbolIds = new int[maxChar + 1];
+        Arrays.fill(symbolIds, NONE);
+        for (int i = 0; i < symbolChars.length; i++) {
+            symbolIds[symbolChars[i]] = i;
+        }
+        return symbolIds;
+    }
+
+    private static void setBit(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    int stateCount() {
+        return stateCount;
+    }
+
+    /** Rough memory footprint, counting mapped file regions as well as heap arrays. */
+    long sizeInBytes() {
+        long bytes = 4L * (symbolIds.length + symbolClasses.length + charSymbols.length + charClasses.length)
+                + 2L * symbolChars.length + 16L * finalBits.length;
+        bytes += table != null ? 4L * table.length : 4L * mappedTable.capacity();
+        if (stateNames != null) {
+            for (String name : stateNames) {
+                bytes += 48 + name.length();
+            }
+        } else {
+            bytes += names.capacity() + 4L * nameOffsets.capacity();
+        }
+        return bytes;
+    }
+
+    String stateName(int state) {
+        if (stateNames != null) {
+            return stateNames[state];
+        }
+        int start = nameOffsets.get(state);
+        int end = nameOffsets.get(state + 1);
+        byte[] bytes = new byte[end - start];
+        names.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int symbolCount() {
+        return symbolCount;
+    }
+
+    int symbolId(char c) {
+        return c < symbolIds.length ? symbolIds[c] : NONE;
+    }
+
+    int next(int state, int symbol) {
+        return nextInClass(state, symbolClasses[symbol]);
+    }
+
+    int classCount() {
+        return classCount;
+    }
+
+    int symbolClass(int symbol) {
+        return symbolClasses[symbol];
+    }
+
+    /** Class of input character c after upper-casing, or NONE when that is not a declared symbol. */
+    int charClass(char c) {
+        return c < charClasses.length ? charClasses[c] : NONE;
+    }
+
+    int nextInClass(int state, int symbolClass) {
+        int i = state * classCount + symbolClass;
+        return table != null ? table[i] : mappedTable.get(i);
+    }
+
+    boolean isFinal(int state) {
+        return (finalBits[state >>> 6] & (1L << state)) != 0;
+    }
+
+    boolean hasTransitions(int state) {
+        return (hasTransitionsBits[state >>> 6] & (1L << state)) != 0;
+    }
+
+    /**
+     * Runs input[from, to) starting in the given state. Input characters are
+     * upper-cased the same way EXECUTE always did. The result packs the position
+     * where the run stopped (high 32 bits) and the state at that position (low
+     * 32 bits); a position equal to {@code to} means the whole range was consumed.
+     * When path is not null, path[i - from + 1] receives the state after input[i].
+     * Runs without a path use the generated matcher when there is one, or
+     * advance several symbols per lookup when the alphabet is small enough for
+     * a stride table.
+     */
+    long run(int state, CharSequence input, int from, int to, int[] path) {
+        FSMMatcher generated = matcher;
+        if (path == null && generated != null) {
+            return generated.run(state, input, from, to);
+        }
+        if (path == null && to - from >= STRIDE_MIN_INPUT) {
+            StrideTable stride = strideTable();
+            if (stride.stride > 1) {
+                return runStrided(stride, state, input, from, to);
+            }
+        }
+        return runSingle(state, input, from, to, path);
+    }
+
+    /** Same as run, always one symbol per lookup. */
+    long runSingle(int state, CharSequence input, int from, int to, int[] path) {
+        if (table == null) {
+            return runMapped(state, input, from, to, path);
+        }
+        final int[] charClasses = this.charClasses;
+        final int[] table = this.table;
+        final int classCount = this.classCount;
+        int i = from;
+        for (; i < to; i++) {
+            char c = input.charAt(i);
+            int symbolClass = c < charClasses.length ? charClasses[c] : NONE;
+            if (symbolClass == NONE) {
+                break;
+            }
+            int target = table[state * classCount + symbolClass];
+            if (target == NONE) {
+                break;
+            }
+            state = target;
+            if (path != null) {
+                path[i - from + 1] = state;
+            }
+        }
+        return ((long) i << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    private long runStrided(StrideTable stride, int state, CharSequence input, int from, int to) {
+        final int[] charClasses = this.charClasses;
+        final int[] targets = stride.targets;
+        final int k = stride.stride;
+        final int width = stride.width;
+        final int classCount = this.classCount;
+        int i = from;
+        int lastBlock = to - k;
+        blocks:
+        while (i <= lastBlock) {
+            int index = 0;
+            for (int m = 0; m < k; m++) {
+                char c = input.charAt(i + m);
+                int symbolClass = c < charClasses.length ? charClasses[c] : NONE;
+                if (symbolClass == NONE) {
+                    break blocks;
+                }
+                index = index * classCount + symbolClass;
+            }
+            int target = targets[state * width + index];
+            if (target == NONE) {
+                break;
+            }
+            state = target;
+            i += k;
+        }
+        // The tail, or the block that failed, one symbol at a time to find the exact position
+        return runSingle(state, input, i, to, null);
+    }
+
+    void setMatcher(FSMMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    boolean hasMatcher() {
+        return matcher != null;
+    }
+
+    /**
+     * Hash of the symbols, states, final states and transitions, the same for
+     * two machines built from the same definition. State names are not part of it.
+     */
+    long fingerprint() {
+        long h = fingerprint;
+        if (h == 0) {
+            h = 0xcbf29ce484222325L;
+            h = mix(h, stateCount);
+            h = mix(h, initialState);
+            for (char c : symbolChars) {
+                h = mix(h, c);
+            }
+            for (int s = 0; s < stateCount; s++) {
+                h = mix(h, isFinal(s) ? 1 : 0);
+                for (int a = 0; a < symbolCount; a++) {
+                    h = mix(h, next(s, a));
+                }
+            }
+            fingerprint = h;
+        }
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        return (h ^ value) * 0x100000001b3L;
+    }
+
+    StrideTable strideTable() {
+        StrideTable stride = strideTable;
+        if (stride == null) {
+            stride = StrideTable.build(this);
+            strideTable = stride;
+        }
+        return stride;
+    }
+
+    GraphAnalysis analysis() {
+        GraphAnalysis a = analysis;
+        if (a == null) {
+            a = new GraphAnalysis(this);
+            analysis = a;
+        }
+        return a;
+    }
+
+    // Same loop as run, reading the transition table from the mapped buffer
+    private long runMapped(int state, CharSequence input, int from, int to, int[] path) {
+        final int[] charClasses = this.charClasses;
+        final IntBuffer table = this.mappedTable;
+        final int classCount = this.classCount;
+        int i = from;
+        for (; i < to; i++) {
+            char c = input.charAt(i);
+            int symbolClass = c < charClasses.length ? charClasses[c] : NONE;
+            if (symbolClass == NONE) {
+                break;
+            }
+            int target = table.get(state * classCount + symbolClass);
+            if (target == NONE) {
+                break;
+            }
+            state = target;
+            if (path != null) {
+                path[i - from + 1] = state;
+            }
+        }
+        return ((long) i << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    /** Same as run, counting every transition taken in counters(). */
+    long runCounted(int state, CharSequence input, int from, int to) {
+        AtomicLongArray hits = counters().stripe();
+        final int[] charSymbols = this.charSymbols;
+        final int[] charClasses = this.charClasses;
+        int i = from;
+        for (; i < to; i++) {
+            char c = input.charAt(i);
+            int symbol = c < charSymbols.length ? charSymbols[c] : NONE;
+            if (symbol == NONE) {
+                break;
+            }
+            int target = nextInClass(state, charClasses[c]);
+            if (target == NONE) {
+                break;
+            }
+            hits.getAndIncrement(state * symbolCount + symbol);
+            state = target;
+        }
+        return ((long) i << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    TransitionCounters counters() {
+        TransitionCounters c = counters;
+        if (c == null) {
+            synchronized (this) {
+                c = counters;
+                if (c == null) {
+                    c = new TransitionCounters(stateCount * symbolCount);
+                    counters = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Runs the whole input from the initial state and returns ACCEPTED, REJECTED,
+     * or FAILED when an undeclared symbol or a missing transition stopped the run.
+     */
+    int classify(CharSequence input) {
+        return verdict(run(initialState, input, 0, input.length(), null), input.length());
+    }
+
+    /** The classify verdict for a run result over an input of the given length. */
+    int verdict(long result, int length) {
+        if (stoppedAt(result) < length) {
+            return FAILED;
+        }
+        return isFinal(stateOf(result)) ? ACCEPTED : REJECTED;
+    }
+
+    /**
+     * Writes the states visited on input, starting with the initial state and
+     * separated by single spaces. The input is replayed in fixed-size chunks so
+     * the path is never held in memory. Only meaningful for inputs that run to
+     * the end (see run).
+     */
+    void writePath(CharSequence input, Writer out) throws IOException {
+        int[] chunk = new int[PATH_CHUNK + 1];
+        int state = initialState;
+        out.write(stateName(state));
+        for (int from = 0; from < input.length(); from += PATH_CHUNK) {
+            int to = Math.min(input.length(), from + PATH_CHUNK);
+            long result = run(state, input, from, to, chunk);
+            int steps = stoppedAt(result) - from;
+            for (int i = 1; i <= steps; i++) {
+                out.write(' ');
+                out.write(stateName(chunk[i]));
+            }
+            if (stoppedAt(result) < to) {
+                return;
+            }
+            state = stateOf(result);
+        }
+    }
+
+    static int stoppedAt(long result) {
+        return (int) (result >>> 32);
+    }
+
+    static int stateOf(long result) {
+        return (int) result;
+    }
+}
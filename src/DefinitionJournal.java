@@ -0,0 +1,148 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Write-ahead journal of the definition commands run since a compiled file
+ * was written, kept next to it as {@code <file>.journal}. COMPILE -journal
+ * saves an edited machine by appending the new commands instead of rewriting
+ * the whole compiled file, and LOAD replays them on top of the mapping. The
+ * journal is a command file in the format LOAD reads: a comment line with the
+ * fingerprint of the compiled file it belongs to, then one command per line.
+ *
+ * Only SYMBOLS, STATES, INITIAL-STATE, FINAL-STATES and TRANSITIONS that
+ * changed the definition are recorded. Commands that replace the definition
+ * (CLEAR, LOAD, MINIMIZE, FSM USE) end journaling, so the next COMPILE
+ * -journal writes the whole file again. So does a journal that has grown past
+ * MIN_COMPACT_BYTES and 1/COMPACT_DIVISOR of the compiled file, which keeps
+ * replaying it cheap.
+ */
+final class DefinitionJournal {
+    static final String FILE_SUFFIX = ".journal";
+    static final int COMPACT_DIVISOR = 4;
+    static final int MIN_COMPACT_BYTES = 1 << 16;
+    private static final String HEADER = "; FSM journal ";
+
+    private final Path compiledFile;
+    // Commands recorded since the last append
+    private final List<String> pending = new ArrayList<>();
+    private long journalBytes;
+    // The compiled file as it was when the journal was started or opened, to notice it being replaced
+    private final long compiledSize;
+    private final FileTime compiledModified;
+
+    private DefinitionJournal(Path compiledFile, long journalBytes) throws IOException {
+        this.compiledFile = compiledFile.toAbsolutePath().normalize();
+        this.journalBytes = journalBytes;
+        this.compiledSize = Files.size(compiledFile);
+        this.compiledModified = Files.getLastModifiedTime(compiledFile);
+    }
+
+    static Path journalFile(Path compiledFile) {
+        return compiledFile.resolveSibling(compiledFile.getFileName() + FILE_SUFFIX);
+    }
+
+    /** Starts an empty journal for a compiled file just written from fsm, replacing any earlier one. */
+    static DefinitionJournal start(Path compiledFile, CompiledFSM fsm) throws IOException {
+        byte[] header = (header(fsm) + "\n").getBytes(StandardCharsets.UTF_8);
+        Files.write(journalFile(compiledFile), header);
+        return new DefinitionJournal(compiledFile, header.length);
+    }
+
+    /**
+     * The journal of compiledFile, which LOAD mapped as fsm, or null when it has
+     * none. Fails when the journal was started for another version of the
+     * compiled file, for instance one rewritten by a plain COMPILE.
+     */
+    static DefinitionJournal open(Path compiledFile, CompiledFSM fsm) throws IOException {
+        Path file = journalFile(compiledFile);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        String firstLine;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            firstLine = in.readLine();
+        }
+        if (!header(fsm).equals(firstLine)) {
+            throw new IOException("journal '" + file + "' does not belong to this compiled file");
+        }
+        return new DefinitionJournal(compiledFile, Files.size(file));
+    }
+
+    private static String header(CompiledFSM fsm) {
+        return HEADER + Long.toHexString(fsm.fingerprint());
+    }
+
+    /** The commands saved in the journal file, in order. */
+    List<String> savedCommands() throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(journalFile(compiledFile), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(";")) {
+                continue;
+            }
+            commands.add(line.endsWith(";") ? line.substring(0, line.length() - 1).trim() : line);
+        }
+        return commands;
+    }
+
+    void record(String command) {
+        pending.add(command);
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    long bytes() {
+        return journalBytes;
+    }
+
+    boolean isFor(Path compiledFile) {
+        return compiledFile.toAbsolutePath().normalize().equals(this.compiledFile);
+    }
+
+    /**
+     * True when COMPILE -journal of compiledFile may append to this journal:
+     * it is the file the journal belongs to, nobody replaced it since, and the
+     * journal is still small next to it.
+     */
+    boolean canAppendFor(Path compiledFile) {
+        if (!isFor(compiledFile)) {
+            return false;
+        }
+        try {
+            return Files.size(compiledFile) == compiledSize
+                    && Files.getLastModifiedTime(compiledFile).equals(compiledModified)
+                    && Files.size(journalFile(compiledFile)) == journalBytes
+                    && journalBytes <= Math.max(MIN_COMPACT_BYTES, compiledSize / COMPACT_DIVISOR);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Appends the pending commands to the journal file and forces them to disk; returns how many. */
+    int append() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String command : pending) {
+            sb.append(command).append(";\n");
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(journalFile(compiledFile),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        journalBytes += bytes.length;
+        int count = pending.size();
+        pending.clear();
+        return count;
+    }
+}
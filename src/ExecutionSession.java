@@ -0,0 +1,91 @@
+/**
+ * One BEGIN/FEED/END session: the machine it runs on, the state it is in and
+ * how many symbols it has consumed. FEED runs only the new chunk, starting
+ * from the saved state, so a session never looks at earlier input again and
+ * holds no input at all. Methods are synchronized per session, so server
+ * connections can feed different sessions at the same time.
+ *
+ * A session keeps the machine it was begun on. When the definition is
+ * changed or reloaded, or a named machine is mapped again after eviction,
+ * the session moves to the new machine if it has the same fingerprint and
+ * the same name for the session's state. Otherwise the session is stale and
+ * can only be ended.
+ */
+final class ExecutionSession {
+    static final int RUNNING = 0;
+    static final int STOPPED = 1;
+    static final int STALE = 2;
+
+    // Name of the machine for sessions begun with @name, null for the current definition
+    final String machineName;
+
+    private CompiledFSM fsm;
+    private int state;
+    private long consumed;
+    private int status = RUNNING;
+    // Upper-cased symbol the run stopped on, once STOPPED
+    private char stopSymbol;
+
+    ExecutionSession(String machineName, CompiledFSM fsm) {
+        this.machineName = machineName;
+        this.fsm = fsm;
+        this.state = fsm.initialState;
+    }
+
+    /**
+     * Runs chunk from the session's state on current, the machine the
+     * session's definition has now (null if there is none). Returns the
+     * status afterwards; a stopped or stale session is left unchanged.
+     */
+    synchronized int feed(CompiledFSM current, CharSequence chunk) {
+        if (status != RUNNING || !rebind(current)) {
+            return status;
+        }
+        long result = fsm.run(state, chunk, 0, chunk.length(), null);
+        int stoppedAt = CompiledFSM.stoppedAt(result);
+        state = CompiledFSM.stateOf(result);
+        consumed += stoppedAt;
+        if (stoppedAt < chunk.length()) {
+            stopSymbol = Character.toUpperCase(chunk.charAt(stoppedAt));
+            status = STOPPED;
+        }
+        return status;
+    }
+
+    /** Checks the session against current without feeding it, see feed. */
+    synchronized int check(CompiledFSM current) {
+        if (status == RUNNING) {
+            rebind(current);
+        }
+        return status;
+    }
+
+    private boolean rebind(CompiledFSM current) {
+        if (current == fsm) {
+            return true;
+        }
+        if (current != null && current.fingerprint() == fsm.fingerprint()
+                && current.stateName(state).equals(fsm.stateName(state))) {
+            fsm = current;
+            return true;
+        }
+        status = STALE;
+        return false;
+    }
+
+    synchronized CompiledFSM fsm() {
+        return fsm;
+    }
+
+    synchronized int state() {
+        return state;
+    }
+
+    synchronized long consumed() {
+        return consumed;
+    }
+
+    synchronized char stopSymbol() {
+        return stopSymbol;
+    }
+}
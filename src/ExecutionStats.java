@@ -0,0 +1,134 @@
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters behind the STATS command: verdicts, errors by kind and a
+ * latency histogram by input length, plus per-transition hits kept in each
+ * CompiledFSM's TransitionCounters. All counters are striped so concurrent
+ * executions do not contend. Collection is off until STATS ON.
+ */
+final class ExecutionStats {
+    // Input lengths are bucketed by bit length: 0, 1, 2-3, 4-7, ...
+    private static final int LENGTH_BUCKETS = 32;
+    private static final int TOP = 10;
+
+    private volatile boolean enabled;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder undeclaredSymbol = new LongAdder();
+    private final LongAdder noTransitions = new LongAdder();
+    private final LongAdder missingTransition = new LongAdder();
+    private final LongAdder[] bucketCount = new LongAdder[LENGTH_BUCKETS];
+    private final LongAdder[] bucketNanos = new LongAdder[LENGTH_BUCKETS];
+
+    ExecutionStats() {
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            bucketCount[i] = new LongAdder();
+            bucketNanos[i] = new LongAdder();
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Runs the whole input from the initial state with counting, and records the outcome. */
+    long run(CompiledFSM fsm, CharSequence input) {
+        long start = System.nanoTime();
+        fsm.counters().starts.increment();
+        long result = fsm.runCounted(fsm.initialState, input, 0, input.length());
+        long elapsed = System.nanoTime() - start;
+
+        int length = input.length();
+        int bucket = 32 - Integer.numberOfLeadingZeros(length);
+        bucketCount[bucket].increment();
+        bucketNanos[bucket].add(elapsed);
+
+        int stoppedAt = CompiledFSM.stoppedAt(result);
+        int state = CompiledFSM.stateOf(result);
+        if (stoppedAt == length) {
+            (fsm.isFinal(state) ? accepted : rejected).increment();
+        } else if (fsm.charClass(input.charAt(stoppedAt)) == CompiledFSM.NONE) {
+            undeclaredSymbol.increment();
+        } else if (!fsm.hasTransitions(state)) {
+            noTransitions.increment();
+        } else {
+            missingTransition.increment();
+        }
+        return result;
+    }
+
+    void reset(CompiledFSM fsm) {
+        for (LongAdder adder : List.of(accepted, rejected, undeclaredSymbol, noTransitions, missingTransition)) {
+            adder.reset();
+        }
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            bucketCount[i].reset();
+            bucketNanos[i].reset();
+        }
+        fsm.counters().reset();
+    }
+
+    /** Writes the report; with all set every state and transition is listed, otherwise only the hottest. */
+    void print(CompiledFSM fsm, PrintWriter out, boolean all) {
+        long errors = undeclaredSymbol.sum() + noTransitions.sum() + missingTransition.sum();
+        out.println("Statistics " + (enabled ? "enabled" : "disabled"));
+        out.printf("Executions: %d (%d accepted, %d rejected, %d errors)%n",
+                accepted.sum() + rejected.sum() + errors, accepted.sum(), rejected.sum(), errors);
+        out.printf("Errors: %d undeclared symbol, %d no transitions from state, %d missing transition%n",
+                undeclaredSymbol.sum(), noTransitions.sum(), missingTransition.sum());
+
+        out.println("Latency by input length:");
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            long count = bucketCount[i].sum();
+            if (count == 0) {
+                continue;
+            }
+            long low = i == 0 ? 0 : 1L << (i - 1);
+            long high = i == 0 ? 0 : (1L << i) - 1;
+            out.printf("  %d-%d: %d runs, %.2f us avg%n", low, high, count, bucketNanos[i].sum() / 1e3 / count);
+        }
+
+        TransitionCounters counters = fsm.counters();
+        long[] hits = counters.totals();
+        int k = fsm.symbolCount();
+        long[] visits = new long[fsm.stateCount()];
+        if (fsm.initialState != CompiledFSM.NONE) {
+            visits[fsm.initialState] += counters.starts.sum();
+        }
+        for (int i = 0; i < hits.length; i++) {
+            if (hits[i] > 0) {
+                visits[fsm.next(i / k, i % k)] += hits[i];
+            }
+        }
+
+        int limit = all ? Integer.MAX_VALUE : TOP;
+        out.println(all ? "State visits:" : "Hottest states:");
+        for (int s : hottest(visits, limit)) {
+            out.println("  " + fsm.stateName(s) + " " + visits[s]);
+        }
+        out.println(all ? "Transition hits:" : "Hottest transitions:");
+        for (int i : hottest(hits, limit)) {
+            out.println("  " + fsm.symbolChars[i % k] + " " + fsm.stateName(i / k) + " "
+                    + fsm.stateName(fsm.next(i / k, i % k)) + " " + hits[i]);
+        }
+    }
+
+    // Indexes of the non-zero counts, largest first
+    private static List<Integer> hottest(long[] counts, int limit) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                indexes.add(i);
+            }
+        }
+        indexes.sort((a, b) -> Long.compare(counts[b], counts[a]));
+        return indexes.size() > limit ? indexes.subList(0, limit) : indexes;
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Compact binary file format written by COMPILE. All values are big-endian:
+ *
+ * <pre>
+ * int    magic "FSMB", int version
+ * int    state count, symbol count, initial state (-1 if none), transition count
+ * int    class count, int unused
+ * char   symbols[symbol count], padded to a multiple of 8 bytes
+ * int    symbol classes[symbol count], padded to a multiple of 8 bytes
+ * long   final state bits[(state count + 63) / 64]
+ * long   states with transitions bits[(state count + 63) / 64]
+ * int    transition table[state count * class count], -1 for no transition
+ * int    name offsets[state count + 1]
+ * byte   UTF-8 state names
+ * </pre>
+ *
+ * LOAD maps the file and executes straight from the transition table in the
+ * mapping, so no per-state objects are created. Version 1 files have no class
+ * count and no symbol classes, and a table indexed by symbol; they are still
+ * loaded, with every symbol in a class of its own.
+ */
+final class FSMBinaryFormat {
+    static final int MAGIC = 0x46534D42;
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int VERSION_1_HEADER_BYTES = 24;
+
+    private FSMBinaryFormat() {
+    }
+
+    static boolean isBinaryFile(Path path) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes to a temporary file that then replaces the target, so a file that is
+     * currently mapped by LOAD is never truncated underneath the mapping.
+     */
+    static void write(CompiledFSM fsm, Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                writeTo(fsm, out);
+            }
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeTo(CompiledFSM fsm, DataOutputStream out) throws IOException {
+        int stateCount = fsm.stateCount();
+        int symbolCount = fsm.symbolCount();
+        int classCount = fsm.classCount();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(stateCount);
+        out.writeInt(symbolCount);
+        out.writeInt(fsm.initialState);
+        out.writeInt(fsm.transitionCount);
+        out.writeInt(classCount);
+        out.writeInt(0);
+
+        for (char c : fsm.symbolChars) {
+            out.writeChar(c);
+        }
+        for (int i = 0; i < padding(symbolCount * 2); i++) {
+            out.writeByte(0);
+        }
+        for (int a = 0; a < symbolCount; a++) {
+            out.writeInt(fsm.symbolClass(a));
+        }
+        for (int i = 0; i < padding(symbolCount * 4); i++) {
+            out.writeByte(0);
+        }
+
+        int words = (stateCount + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            long bits = 0;
+            for (int s = w << 6; s < Math.min(stateCount, (w + 1) << 6); s++) {
+                if (fsm.isFinal(s)) {
+                    bits |= 1L << s;
+                }
+            }
+            out.writeLong(bits);
+        }
+        for (int w = 0; w < words; w++) {
+            long bits = 0;
+            for (int s = w << 6; s < Math.min(stateCount, (w + 1) << 6); s++) {
+                if (fsm.hasTransitions(s)) {
+                    bits |= 1L << s;
+                }
+            }
+            out.writeLong(bits);
+        }
+
+        for (int s = 0; s < stateCount; s++) {
+            for (int j = 0; j < classCount; j++) {
+                out.writeInt(fsm.nextInClass(s, j));
+            }
+        }
+
+        byte[][] names = new byte[stateCount][];
+        int offset = 0;
+        out.writeInt(0);
+        for (int s = 0; s < stateCount; s++) {
+            names[s] = fsm.stateName(s).getBytes(StandardCharsets.UTF_8);
+            offset += names[s].length;
+            out.writeInt(offset);
+        }
+        for (byte[] name : names) {
+            out.write(name);
+        }
+    }
+
+    static CompiledFSM map(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Compiled file larger than 2 GB");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled FSM file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported compiled file version " + version);
+        }
+        int stateCount = buffer.getInt(8);
+        int symbolCount = buffer.getInt(12);
+        int initialState = buffer.getInt(16);
+        int transitionCount = buffer.getInt(20);
+        int classCount = version == 1 ? symbolCount : buffer.getInt(24);
+
+        int pos = version == 1 ? VERSION_1_HEADER_BYTES : HEADER_BYTES;
+        char[] symbolChars = new char[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            symbolChars[i] = buffer.getChar(pos + 2 * i);
+        }
+        pos += symbolCount * 2 + padding(symbolCount * 2);
+        int[] symbolClasses = new int[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            symbolClasses[i] = version == 1 ? i : buffer.getInt(pos + 4 * i);
+            if (symbolClasses[i] < 0 || symbolClasses[i] >= classCount) {
+                throw new IOException("Invalid symbol class " + symbolClasses[i]);
+            }
+        }
+        if (version != 1) {
+            pos += symbolCount * 4 + padding(symbolCount * 4);
+        }
+
+        int words = (stateCount + 63) >>> 6;
+        long[] finalBits = new long[words];
+        for (int w = 0; w < words; w++) {
+            finalBits[w] = buffer.getLong(pos + 8 * w);
+        }
+        pos += words * 8;
+        long[] hasTransitionsBits = new long[words];
+        for (int w = 0; w < words; w++) {
+            hasTransitionsBits[w] = buffer.getLong(pos + 8 * w);
+        }
+        pos += words * 8;
+
+        int tableBytes = stateCount * classCount * 4;
+        IntBuffer table = buffer.slice(pos, tableBytes).asIntBuffer();
+        pos += tableBytes;
+        IntBuffer nameOffsets = buffer.slice(pos, (stateCount + 1) * 4).asIntBuffer();
+        pos += (stateCount + 1) * 4;
+        ByteBuffer names = buffer.slice(pos, buffer.limit() - pos);
+
+        return CompiledFSM.mapped(stateCount, names, nameOffsets, symbolChars, symbolClasses, classCount, table,
+                finalBits, hasTransitionsBits, initialState, transitionCount);
+    }
+
+    private static int padding(int bytes) {
+        return (8 - (bytes & 7)) & 7;
+    }
+}
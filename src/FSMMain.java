@@ -1,5 +1,10 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 import java.time.*;
 
 public class FSMMain {
@@ -9,13 +14,59 @@ public class FSMMain {
     private static String initialState = null;
     private static Set<String> finalStates = new HashSet<>();
     private static Map<String, Map<Character, String>> transitions = new HashMap<>();
-    private static PrintWriter logWriter = null;
-    private static boolean loggingEnabled = false;
+    // Targets added with TRANSITIONS -add besides the one in transitions, and EPSILON moves.
+    // While either is non-empty the definition is nondeterministic and runs on lazyDFA.
+    private static Map<String, Map<Character, Set<String>>> extraTransitions = new HashMap<>();
+    private static Map<String, Set<String>> epsilonTransitions = new HashMap<>();
+    // Volatile because server connections log EXECUTE commands without the definition lock
+    private static volatile AsyncLog logWriter = null;
+    private static volatile boolean loggingEnabled = false;
     private static String logFileName = "";
+    // Array based form of the definition used by EXECUTE, rebuilt lazily after any change
+    private static CompiledFSM compiled = null;
+    // Set after loading a binary file: compiled reads from the file mapping and the
+    // collections above stay empty until a command needs them (see materialize)
+    private static boolean definitionMapped = false;
+    // Set by STORAGE COMPACT: symbols, states, finalStates and transitions are then views of it
+    private static CompactFSM compact = null;
+    // Executes nondeterministic definitions, rebuilt lazily after any change like compiled
+    private static LazyDFA lazyDFA = null;
+    // Product of the machines of the last EXECUTE -multi, kept while they are the same
+    private static volatile MultiExecutor multiExecutor = null;
+    // BEGIN/FEED/END sessions by name, used by server connections without the definition lock
+    private static final Map<String, ExecutionSession> sessions = new ConcurrentHashMap<>();
+    // Prefix states kept by EXECUTE-FILE -prefix -cache, shared by server connections
+    private static volatile PrefixCache prefixCache = null;
+    private static final int MAX_PREFIX_CACHE_ENTRIES = 1 << 26;
+    // State names ANALYZE lists per set before eliding the rest
+    private static final int ANALYZE_LISTED = 20;
+    // Set by COMPILE -journal and by loading a compiled file that has a journal; records the
+    // definition commands the next COMPILE -journal appends instead of rewriting the file
+    private static DefinitionJournal journal = null;
+    // Incremented by definitionChanged, so a command can tell whether it changed anything
+    private static long definitionVersion = 0;
+    // Named machines available to FSM USE and EXECUTE @name
+    private static final FSMRegistry registry = new FSMRegistry();
+    // Counters reported by STATS, collected only after STATS ON
+    private static final ExecutionStats executionStats = new ExecutionStats();
+    // Set by ScriptRunner while a -batch script runs, to write its summary when EXIT ends the process
+    private static Runnable exitHook = null;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("-server")) {
+            runServer(args.length > 1 ? args[1] : String.valueOf(FSMServer.DEFAULT_PORT));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("-batch")) {
+            runScript(Arrays.copyOfRange(args, 1, args.length));
+            closeLog();
+            return;
+        }
+
         if (args.length > 0) {
             processFile(args[0]);
+            closeLog();
             return;
         }
 
@@ -52,14 +103,54 @@ public class FSMMain {
             }
         }
         scanner.close();
+        closeLog();
     }
 
 
-    private static void processCommand(String command) {
-        if (loggingEnabled) {
-            logWriter.println("> " + command);
-            logWriter.flush();
+    private static void runServer(String port) {
+        try {
+            new FSMServer(Integer.parseInt(port)).run();
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Invalid port '" + port + "'");
+        } catch (IOException e) {
+            System.out.println("Error: Could not start server: " + e.getMessage());
+        } finally {
+            closeLog();
+        }
+    }
+
+    /**
+     * Runs EXECUTE, EXECUTE-FILE or a session command against the given
+     * snapshot instead of the current definition. Used by server connections,
+     * which must not touch the definition while another connection may be
+     * changing it.
+     */
+    static void executeCommand(String command, CompiledFSM snapshot) {
+        logCommand(command);
+        String[] parts = command.split("\\s+", 2);
+        String cmd = parts[0].toUpperCase();
+        String args = parts.length > 1 ? parts[1] : "";
+        try {
+            if (cmd.equals("EXECUTE")) {
+                handleExecute(args, snapshot);
+            } else if (isSessionCommand(cmd)) {
+                handleSession(cmd, args, snapshot);
+            } else {
+                handleExecuteFile(args, snapshot);
+            }
+        } catch (Exception e) {
+            System.out.println("Error processing command: " + e.getMessage());
         }
+    }
+
+    // The definition as it is now; callers outside the command loop must hold the server's lock.
+    // Null for a nondeterministic definition, whose lazy DFA may only be run under that lock.
+    static CompiledFSM snapshot() {
+        return isNondeterministic() ? null : compiledFSM();
+    }
+
+    static void processCommand(String command) {
+        logCommand(command);
 
         if (command.isEmpty()) {
             return;
@@ -68,6 +159,7 @@ public class FSMMain {
         String[] parts = command.split("\\s+", 2);
         String cmd = parts[0].toUpperCase();
         String args = parts.length > 1 ? parts[1] : "";
+        long version = definitionVersion;
 
         try {
             switch (cmd) {
@@ -109,49 +201,158 @@ public class FSMMain {
                     handleLoad(args);
                     break;
                 case "EXECUTE":
-                    handleExecute(args);
+                    handleExecute(args, isNondeterministic() ? null : compiledFSM());
+                    break;
+                case "SEARCH":
+                    handleSearch(args);
+                    break;
+                case "STATS":
+                    handleStats(args);
+                    break;
+                case "FSM":
+                    handleFsm(args);
+                    break;
+                case "MINIMIZE":
+                    handleMinimize();
+                    break;
+                case "ANALYZE":
+                    handleAnalyze(args);
+                    break;
+                case "STORAGE":
+                    handleStorage(args);
+                    break;
+                case "BEGIN":
+                case "FEED":
+                case "QUERY":
+                case "END":
+                case "SESSIONS":
+                    handleSession(cmd, args, isNondeterministic() ? null : compiledFSM());
+                    break;
+                case "EXECUTE-FILE":
+                case "EXECUTEFILE":
+                    handleExecuteFile(args, isNondeterministic() ? null : compiledFSM());
                     break;
                 default:
                     System.out.println("Error: Invalid command '" + cmd + "'");
             }
+            if (isJournaledCommand(cmd)) {
+                journalCommand(command, version);
+            }
         } catch (Exception e) {
             System.out.println("Error processing command: " + e.getMessage());
         }
     }
 
+    private static boolean isJournaledCommand(String cmd) {
+        switch (cmd) {
+            case "SYMBOLS":
+            case "STATES":
+            case "INITIAL-STATE":
+            case "INITIALSTATE":
+            case "INITIAL":
+            case "FINAL-STATES":
+            case "FINALSTATES":
+            case "FINAL":
+            case "TRANSITIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Records a definition command in the journal, if there is one and the command changed the definition
+    private static void journalCommand(String command, long versionBefore) {
+        if (journal != null && definitionVersion != versionBefore) {
+            journal.record(command);
+        }
+    }
+
+    static void setExitHook(Runnable hook) {
+        exitHook = hook;
+    }
+
     private static void handleExit() {
-        System.out.println("TERMINATED BY USER");
-        if (loggingEnabled) {
-            logWriter.close();
+        Runnable hook = exitHook;
+        if (hook != null) {
+            hook.run();
+        } else {
+            System.out.println("TERMINATED BY USER");
         }
+        closeLog();
         System.exit(0);
     }
 
+    // LOG [<file> [-batch <n>] [-interval <ms>] [-capacity <n>] [-nonblocking]]
     private static void handleLog(String args) {
         if (args.isEmpty()) {
             if (loggingEnabled) {
-                logWriter.close();
-                loggingEnabled = false;
+                closeLog();
                 System.out.println("STOPPED LOGGING");
             } else {
                 System.out.println("LOGGING was not enabled");
             }
         } else {
+            String[] parts = args.split("\\s+");
+            int capacity = AsyncLog.DEFAULT_CAPACITY;
+            int batchSize = AsyncLog.DEFAULT_BATCH_SIZE;
+            long flushInterval = AsyncLog.DEFAULT_FLUSH_INTERVAL_MILLIS;
+            boolean blocking = true;
             try {
-                if (loggingEnabled) {
-                    logWriter.close();
+                for (int i = 1; i < parts.length; i++) {
+                    String option = parts[i].toLowerCase();
+                    if (option.equals("-nonblocking")) {
+                        blocking = false;
+                    } else if (i + 1 < parts.length && option.equals("-batch")) {
+                        batchSize = Integer.parseInt(parts[++i]);
+                    } else if (i + 1 < parts.length && option.equals("-interval")) {
+                        flushInterval = Long.parseLong(parts[++i]);
+                    } else if (i + 1 < parts.length && option.equals("-capacity")) {
+                        capacity = Integer.parseInt(parts[++i]);
+                    } else {
+                        System.out.println("Error: Invalid LOG option '" + parts[i] + "'");
+                        return;
+                    }
                 }
-                logFileName = args;
-                logWriter = new PrintWriter(new FileWriter(logFileName));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid number in LOG options: " + e.getMessage());
+                return;
+            }
+            if (capacity < 1 || batchSize < 1 || flushInterval < 1) {
+                System.out.println("Error: LOG options must be positive");
+                return;
+            }
+
+            try {
+                closeLog();
+                logFileName = parts[0];
+                logWriter = new AsyncLog(logFileName, capacity, batchSize, flushInterval, blocking);
                 loggingEnabled = true;
                 System.out.println("LOGGING STARTED to " + logFileName);
             } catch (IOException e) {
-                System.out.println("Error: Could not open log file '" + args + "': " + e.getMessage());
+                System.out.println("Error: Could not open log file '" + parts[0] + "': " + e.getMessage());
             }
         }
     }
 
+    // Drains and closes the log; safe to call when logging is off
+    private static void closeLog() {
+        if (!loggingEnabled) {
+            return;
+        }
+        loggingEnabled = false;
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            System.out.println("Error: Could not write log file '" + logFileName + "': " + e.getMessage());
+        }
+        if (!logWriter.isBlocking() && logWriter.droppedCount() > 0) {
+            System.out.println("Warning: " + logWriter.droppedCount() + " log entries were dropped");
+        }
+        logWriter = null;
+    }
+
     private static void handleSymbols(String args) {
+        materialize();
         if (args.isEmpty()) {
             // Print existing symbols
             if (symbols.isEmpty()) {
@@ -179,6 +380,7 @@ public class FSMMain {
                     System.out.println("Warning: Symbol '" + c + "' was already declared");
                 } else {
                     symbols.add(c);
+                    definitionChanged();
                     anyAdded = true;
                 }
 
@@ -197,6 +399,7 @@ public class FSMMain {
 
 
     private static void handleStates(String args) {
+        materialize();
         args = args.replace(";", "").trim();
         if (args.isEmpty()) {
             // Print existing states
@@ -231,6 +434,7 @@ public class FSMMain {
                     System.out.println("Warning: State '" + state + "' was already declared");
                 } else {
                     states.add(state);
+                    definitionChanged();
                     anyAdded = true;
                     if (initialState == null) {
                         initialState = state;
@@ -245,6 +449,7 @@ public class FSMMain {
     }
 
     private static void handleInitialState(String args) {
+        materialize();
         if (args.isEmpty()) {
             System.out.println("Error: No state specified");
             return;
@@ -258,14 +463,17 @@ public class FSMMain {
 
         if (!states.contains(state)) {
             states.add(state);
+            definitionChanged();
             System.out.println("Warning: State '" + state + "' was not previously declared");
         }
 
         initialState = state;
+        definitionChanged();
         System.out.println("Initial state set to '" + state + "'");
     }
 
     private static void handleFinalStates(String args) {
+        materialize();
         if (args.isEmpty()) {
             // Print final states
             if (finalStates.isEmpty()) {
@@ -285,12 +493,14 @@ public class FSMMain {
                 }
                 if (!states.contains(state)) {
                     states.add(state);
+                    definitionChanged();
                     System.out.println("Warning: State '" + state + "' was not previously declared");
                 }
                 if (finalStates.contains(state)) {
                     System.out.println("Warning: State '" + state + "' was already declared as final");
                 } else {
                     finalStates.add(state);
+                    definitionChanged();
                     anyAdded = true;
                 }
             }
@@ -301,6 +511,7 @@ public class FSMMain {
     }
 
     private static void handleTransitions(String args) {
+        materialize();
         if (args.isEmpty()) {
             // Print all transitions
             if (transitions.isEmpty()) {
@@ -314,6 +525,7 @@ public class FSMMain {
                                 .append(" ").append(stateTransitions.get(symbol)).append(", ");
                     }
                 }
+                appendNondeterministic(sb);
                 if (sb.length() > 13) {
                     System.out.println(sb.substring(0, sb.length() - 2));
                 } else {
@@ -323,6 +535,18 @@ public class FSMMain {
             return;
         }
 
+        // With -add a transition becomes one more target instead of replacing the existing one
+        boolean add = false;
+        String[] option = args.split("\\s+", 2);
+        if (option[0].equalsIgnoreCase("-add")) {
+            add = true;
+            args = option.length > 1 ? option[1] : "";
+            if (args.isEmpty()) {
+                System.out.println("Error: No transitions specified");
+                return;
+            }
+        }
+
         // Process transition
         String[] transitionDefs = args.split(",");
         for (String def : transitionDefs) {
@@ -339,6 +563,17 @@ public class FSMMain {
             String fromState = parts[1].toUpperCase();;
             String toState = parts[2].toUpperCase();;
 
+            if (symbolStr.equalsIgnoreCase("EPSILON")) {
+                if (!states.contains(fromState)) {
+                    System.out.println("Error: State '" + fromState + "' not declared");
+                } else if (!states.contains(toState)) {
+                    System.out.println("Error: State '" + toState + "' not declared");
+                } else if (addEpsilon(fromState, toState)) {
+                    definitionChanged();
+                }
+                continue;
+            }
+
             if (symbolStr.length() != 1) {
                 System.out.println("Error: Symbol must be single character in '" + def + "'");
                 continue;
@@ -358,12 +593,20 @@ public class FSMMain {
                 continue;
             }
 
+            if (add) {
+                if (addTarget(fromState, symbol, toState)) {
+                    definitionChanged();
+                }
+                continue;
+            }
+
             // Check for existing transition
             if (!transitions.containsKey(fromState)) {
                 transitions.put(fromState, new HashMap<>());
             }
 
             Map<Character, String> stateTransitions = transitions.get(fromState);
+            removeExtraTargets(fromState, symbol);
             if (stateTransitions.containsKey(symbol)) {
                 if (!stateTransitions.get(symbol).equals(toState)) {
                     System.out.println("Warning: Overriding transition for symbol '" + symbol +
@@ -371,10 +614,70 @@ public class FSMMain {
                 }
             }
             stateTransitions.put(symbol, toState);
+            definitionChanged();
+        }
+    }
+
+    // The first target of a pair goes to transitions, later different ones to extraTransitions
+    private static boolean addTarget(String fromState, char symbol, String toState) {
+        Map<Character, String> stateTransitions = transitions.computeIfAbsent(fromState, k -> new HashMap<>());
+        String primary = stateTransitions.putIfAbsent(symbol, toState);
+        if (primary == null) {
+            return true;
+        }
+        if (primary.equals(toState)) {
+            return false;
+        }
+        return extraTransitions.computeIfAbsent(fromState, k -> new HashMap<>())
+                .computeIfAbsent(symbol, k -> new TreeSet<>()).add(toState);
+    }
+
+    private static boolean addEpsilon(String fromState, String toState) {
+        return epsilonTransitions.computeIfAbsent(fromState, k -> new TreeSet<>()).add(toState);
+    }
+
+    // A plain TRANSITIONS entry replaces every target of the pair
+    private static void removeExtraTargets(String fromState, char symbol) {
+        Map<Character, Set<String>> extra = extraTransitions.get(fromState);
+        if (extra != null && extra.remove(symbol) != null) {
+            if (extra.isEmpty()) {
+                extraTransitions.remove(fromState);
+            }
+            definitionChanged();
+        }
+    }
+
+    private static boolean isNondeterministic() {
+        return !extraTransitions.isEmpty() || !epsilonTransitions.isEmpty();
+    }
+
+    // Lists the extra targets and EPSILON moves in the "symbol from to, " form of the TRANSITIONS listing
+    private static void appendNondeterministic(StringBuilder sb) {
+        for (Map.Entry<String, Map<Character, Set<String>>> entry : extraTransitions.entrySet()) {
+            for (Map.Entry<Character, Set<String>> t : entry.getValue().entrySet()) {
+                for (String toState : t.getValue()) {
+                    sb.append(t.getKey()).append(" ").append(entry.getKey()).append(" ").append(toState).append(", ");
+                }
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : epsilonTransitions.entrySet()) {
+            for (String toState : entry.getValue()) {
+                sb.append("EPSILON ").append(entry.getKey()).append(" ").append(toState).append(", ");
+            }
+        }
+    }
+
+    // Commands that need the array form refuse nondeterministic definitions rather than drop targets
+    private static boolean requireDeterministic(String command) {
+        if (!isNondeterministic()) {
+            return true;
         }
+        System.out.println("Error: " + command + " needs a deterministic FSM (remove EPSILON and -add transitions)");
+        return false;
     }
 
     private static void handlePrint(String args) {
+        materialize();
         if (args.isEmpty()) {
 // Print to console
             System.out.println("SYMBOLS " + symbols);
@@ -391,11 +694,19 @@ public class FSMMain {
                             .append(" ").append(stateTransitions.get(symbol)).append(", ");
                 }
             }
+            appendNondeterministic(sb);
             if (sb.length() > 12) {
                 System.out.println(sb.substring(0, sb.length() - 2));
             } else {
                 System.out.println(sb.toString());
             }
+            // Classes are computed over the first target of each transition only, which misses the
+            // extra targets and EPSILON moves of a nondeterministic definition
+            CompiledFSM fsm = isNondeterministic() ? null : compiledFSM();
+            if (fsm != null && fsm.symbolCount() > 0) {
+                System.out.printf("SYMBOL CLASSES %d for %d symbols, compression ratio %.2f%n",
+                        fsm.classCount(), fsm.symbolCount(), (double) fsm.symbolCount() / fsm.classCount());
+            }
         } else {
             // Print to file
             try (PrintWriter writer = new PrintWriter(new FileWriter(args))) {
@@ -417,6 +728,11 @@ public class FSMMain {
                 } else {
                     writer.println(sb.toString() + ";");
                 }
+                if (isNondeterministic()) {
+                    StringBuilder extra = new StringBuilder("TRANSITIONS -add ");
+                    appendNondeterministic(extra);
+                    writer.println(extra.substring(0, extra.length() - 2) + ";");
+                }
                 System.out.println("FSM definition written to " + args);
             } catch (IOException e) {
                 System.out.println("Error writing to file '" + args + "': " + e.getMessage());
@@ -432,21 +748,96 @@ public class FSMMain {
             return;
         }
 
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(args))) {
-            FSMSerializable fsm = new FSMSerializable(symbols, states, initialState, finalStates, transitions);
-            oos.writeObject(fsm);
+        if (!requireDeterministic("COMPILE")) {
+            return;
+        }
+
+        String[] option = args.split("\\s+", 2);
+        boolean withMatcher = option[0].equalsIgnoreCase("-matcher");
+        boolean withJournal = option[0].equalsIgnoreCase("-journal");
+        if (withMatcher || withJournal) {
+            if (option.length < 2) {
+                System.out.println("Error: No filename specified");
+                return;
+            }
+            args = option[1];
+        }
+        Path path = new File(args).toPath();
+
+        if (withJournal && journal != null && journal.canAppendFor(path)) {
+            try {
+                long start = System.nanoTime();
+                int appended = journal.pendingCount() == 0 ? 0 : journal.append();
+                System.out.println("Compile successful");
+                if (appended == 0) {
+                    System.out.println("Journal: no changes since the last COMPILE");
+                } else {
+                    System.out.printf("Journal: %d commands appended to %s in %.1f ms (%d bytes)%n", appended,
+                            DefinitionJournal.journalFile(path), (System.nanoTime() - start) / 1e6, journal.bytes());
+                }
+            } catch (IOException e) {
+                System.out.println("Error compiling to file '" + args + "': " + e.getMessage());
+            }
+            return;
+        }
+
+        CompiledFSM fsm = compiledFSM();
+        try {
+            FSMBinaryFormat.write(fsm, path);
             System.out.println("Compile successful");
         } catch (IOException e) {
             System.out.println("Error compiling to file '" + args + "': " + e.getMessage());
+            return;
+        }
+        // The compiled file now holds everything its journal did
+        boolean folded = journal != null && journal.isFor(path);
+        if (folded) {
+            journal = null;
+        }
+        try {
+            Path journalFile = DefinitionJournal.journalFile(path);
+            if (withJournal) {
+                journal = DefinitionJournal.start(path, fsm);
+                System.out.println((folded ? "Journal folded into the compiled file and restarted at "
+                        : "Journal started at ") + journalFile);
+            } else if (Files.deleteIfExists(journalFile)) {
+                System.out.println("Journal " + journalFile + " folded into the compiled file");
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Could not write journal for '" + args + "': " + e.getMessage());
+            journal = null;
+        }
+        if (withMatcher) {
+            compileMatcher(fsm, path);
+        }
+    }
+
+    // Generates the matcher for fsm, uses it for EXECUTE and saves it next to the compiled file
+    private static void compileMatcher(CompiledFSM fsm, Path compiledFile) {
+        if (!MatcherGenerator.canGenerate(fsm)) {
+            System.out.println("Warning: FSM is too large for a generated matcher (more than "
+                    + MatcherGenerator.MAX_TABLE_ENTRIES + " table entries) or has no initial state");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] classBytes = MatcherGenerator.generate(fsm);
+            fsm.setMatcher(MatcherGenerator.define(classBytes));
+            MatcherGenerator.save(compiledFile, fsm, classBytes);
+            System.out.printf("Matcher generated in %.1f ms, saved to %s%n", (System.nanoTime() - start) / 1e6,
+                    MatcherGenerator.matcherFile(compiledFile));
+        } catch (IOException e) {
+            System.out.println("Warning: No matcher generated: " + e.getMessage());
         }
     }
 
     private static void handleClear() {
-        symbols.clear();
-        states.clear();
-        initialState = null;
-        finalStates.clear();
-        transitions.clear();
+        journal = null;
+        setDefinition(new HashSet<>(), new HashSet<>(), null, new HashSet<>(), new HashMap<>());
+        extraTransitions.clear();
+        epsilonTransitions.clear();
+        definitionMapped = false;
+        definitionChanged();
         System.out.println("FSM cleared");
     }
 
@@ -456,21 +847,54 @@ public class FSMMain {
             return;
         }
 
-        // Try to load as binary first
+        String[] option = args.split("\\s+", 2);
+        if (option[0].equalsIgnoreCase("-bulk")) {
+            if (option.length < 2) {
+                System.out.println("Error: No filename specified");
+                return;
+            }
+            handleBulkLoad(option[1]);
+            return;
+        }
+
+        if (FSMBinaryFormat.isBinaryFile(new File(args).toPath())) {
+            Path path = new File(args).toPath();
+            CompiledFSM fsm;
+            try {
+                fsm = FSMBinaryFormat.map(path);
+            } catch (IOException e) {
+                System.out.println("Error: Could not load compiled file '" + args + "': " + e.getMessage());
+                return;
+            }
+            boolean withMatcher = MatcherGenerator.attachSaved(fsm, path);
+            useCompiled(fsm);
+            int replayed = replayJournal(path, fsm);
+            if (replayed > 0) {
+                System.out.println("FSM loaded from compiled file, " + replayed + " journal commands replayed");
+            } else {
+                System.out.println("FSM loaded from compiled file" + (withMatcher ? " with its generated matcher" : ""));
+            }
+            return;
+        }
+
+        // Files compiled by older versions hold a serialized FSMSerializable
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args))) {
             FSMSerializable fsm = (FSMSerializable) ois.readObject();
-            symbols = new HashSet<>(fsm.getSymbols());
-            states = new HashSet<>(fsm.getStates());
-            initialState = fsm.getInitialState();
-            finalStates = new HashSet<>(fsm.getFinalStates());
-            transitions = new HashMap<>(fsm.getTransitions());
+            journal = null;
+            setDefinition(new HashSet<>(fsm.getSymbols()), new HashSet<>(fsm.getStates()), fsm.getInitialState(),
+                    new HashSet<>(fsm.getFinalStates()), new HashMap<>(fsm.getTransitions()));
+            extraTransitions = new HashMap<>();
+            epsilonTransitions = new HashMap<>();
+            definitionMapped = false;
+            definitionChanged();
             System.out.println("FSM loaded from compiled file");
             return;
         } catch (Exception e) {
             // Not a binary file, try as text file
         }
 
-        // Load as text file
+        // Load as text file, on top of the current definition
+        materialize();
         try (Scanner fileScanner = new Scanner(new File(args))) {
             StringBuilder commandBuilder = new StringBuilder();
             int lineNumber = 0;
@@ -504,59 +928,1387 @@ public class FSMMain {
         }
     }
 
-    private static void handleExecute(String args) {
-        if (args.isEmpty()) {
-            System.out.println("Error: No input string specified");
-            System.out.println("Execution terminated");
-            return;
+    /**
+     * Replays the journal of a compiled file just loaded as fsm, if it has one,
+     * and keeps recording into it. Returns the number of commands replayed.
+     */
+    private static int replayJournal(Path path, CompiledFSM fsm) {
+        DefinitionJournal opened;
+        List<String> commands;
+        try {
+            opened = DefinitionJournal.open(path, fsm);
+            if (opened == null) {
+                return 0;
+            }
+            commands = opened.savedCommands();
+        } catch (IOException e) {
+            System.out.println("Warning: Journal ignored: " + e.getMessage());
+            return 0;
+        }
+        if (!commands.isEmpty()) {
+            // The commands ran once already, so their warnings are not repeated
+            materialize();
+            LoadDiagnostics diagnostics = new LoadDiagnostics();
+            for (int i = 0; i < commands.size(); i++) {
+                bulkCommand(commands.get(i), i + 2, diagnostics);
+            }
         }
+        journal = opened;
+        return commands.size();
+    }
 
-        if (initialState == null) {
-            System.out.println("Error: No initial state defined");
-            System.out.println("Execution terminated");
+    /**
+     * LOAD -bulk: same result as loading a text file command by command, but the
+     * definition commands are parsed by hand instead of with split/matches, and
+     * their warnings are summarized at the end instead of printed one by one.
+     * Any other command in the file goes through processCommand as usual.
+     */
+    private static void handleBulkLoad(String fileName) {
+        File file = new File(fileName);
+        if (FSMBinaryFormat.isBinaryFile(file.toPath()) || isSerializedFile(file)) {
+            handleLoad(fileName);
             return;
         }
 
-        String currentState = initialState;
-        StringBuilder path = new StringBuilder(currentState + " ");
-        boolean error = false;
+        materialize();
+        long start = System.nanoTime();
+        LoadDiagnostics diagnostics = new LoadDiagnostics();
+        int lineNumber = 0;
+        int commandCount = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 20)) {
+            StringBuilder commandBuilder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
 
-        for (int i = 0; i < args.length(); i++) {
-            char symbol = Character.toUpperCase(args.charAt(i));
+                if (line.isEmpty() || line.charAt(0) == ';') {
+                    continue;
+                }
 
-            if (!symbols.contains(symbol)) {
-                System.out.println("Error: Symbol '" + symbol + "' not declared");
-                System.out.println("Execution terminated");
-                error = true;
-                break;
+                int semicolon = line.indexOf(';');
+                if (semicolon < 0) {
+                    commandBuilder.append(line).append(' ');
+                    continue;
+                }
+                String command;
+                if (commandBuilder.length() == 0) {
+                    command = line.substring(0, semicolon).trim();
+                } else {
+                    command = commandBuilder.append(line, 0, semicolon).toString().trim();
+                    commandBuilder.setLength(0);
+                }
+                commandCount++;
+                bulkCommand(command, lineNumber, diagnostics);
             }
+        } catch (FileNotFoundException e) {
+            System.out.println("Error: File '" + fileName + "' not found");
+            return;
+        } catch (IOException e) {
+            System.out.println("Error reading file '" + fileName + "': " + e.getMessage());
+            return;
+        }
 
-            if (!transitions.containsKey(currentState)) {
-                System.out.println("Error: No transitions defined from state '" + currentState + "'");
-                System.out.println("Execution terminated");
-                error = true;
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("FSM commands bulk loaded from text file: %d lines, %d commands in %.1f ms (%.0f lines/sec)%n",
+                lineNumber, commandCount, elapsed / 1e6, elapsed == 0 ? 0.0 : lineNumber * 1e9 / elapsed);
+        if (diagnostics.total() > 0) {
+            System.out.println(diagnostics.total() + " warnings and errors:");
+            diagnostics.print();
+        }
+    }
+
+    private static boolean isSerializedFile(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() == 0xAC && in.read() == 0xED;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void bulkCommand(String command, int lineNumber, LoadDiagnostics diagnostics) {
+        int end = 0;
+        while (end < command.length() && !isWhitespace(command.charAt(end))) {
+            end++;
+        }
+        int argsStart = end;
+        while (argsStart < command.length() && isWhitespace(command.charAt(argsStart))) {
+            argsStart++;
+        }
+        boolean hasArgs = argsStart < command.length();
+
+        String cmd = command.substring(0, end).toUpperCase();
+        // Listing forms print the definition, leave them to the normal handlers
+        if (!hasArgs) {
+            processCommand(command);
+            return;
+        }
+        long version = definitionVersion;
+        switch (cmd) {
+            case "SYMBOLS":
+                logCommand(command);
+                bulkSymbols(command, argsStart, lineNumber, diagnostics);
                 break;
+            case "STATES":
+                logCommand(command);
+                bulkStates(command, argsStart, lineNumber, diagnostics);
+                break;
+            case "INITIAL-STATE":
+            case "INITIALSTATE":
+            case "INITIAL":
+                logCommand(command);
+                bulkInitialState(command, argsStart, lineNumber, diagnostics);
+                break;
+            case "FINAL-STATES":
+            case "FINALSTATES":
+            case "FINAL":
+                logCommand(command);
+                bulkFinalStates(command, argsStart, lineNumber, diagnostics);
+                break;
+            case "TRANSITIONS":
+                // -add is rare enough to leave to the normal handler
+                if (command.regionMatches(true, argsStart, "-add", 0, 4)) {
+                    processCommand(command);
+                    return;
+                }
+                logCommand(command);
+                bulkTransitions(command, argsStart, lineNumber, diagnostics);
+                break;
+            default:
+                processCommand(command);
+                return;
+        }
+        journalCommand(command, version);
+    }
+
+    // The logging processCommand does for the commands the bulk loader handles itself
+    private static void logCommand(String command) {
+        AsyncLog log = logWriter;
+        if (loggingEnabled && log != null) {
+            log.log("> " + command);
+        }
+    }
+
+    private static void bulkSymbols(String command, int pos, int lineNumber, LoadDiagnostics diagnostics) {
+        int length = command.length();
+        while (pos < length) {
+            int end = pos;
+            while (end < length && !isWhitespace(command.charAt(end))) {
+                end++;
+            }
+            if (end - pos != 1) {
+                diagnostics.report("symbol must be exactly one character", lineNumber,
+                        "Symbol '" + command.substring(pos, end) + "' must be exactly one character");
+            } else {
+                char c = command.charAt(pos);
+                if (!Character.isLetterOrDigit(c)) {
+                    diagnostics.report("symbol is not alphanumeric", lineNumber,
+                            "Symbol '" + c + "' is not alphanumeric");
+                } else if (!symbols.add(c)) {
+                    diagnostics.report("symbol already declared", lineNumber,
+                            "Symbol '" + c + "' was already declared");
+                } else {
+                    definitionChanged();
+                }
             }
+            pos = skipWhitespace(command, end);
+        }
+    }
 
-            Map<Character, String> stateTransitions = transitions.get(currentState);
-            if (!stateTransitions.containsKey(symbol)) {
-                System.out.println("Error: No transition for symbol '" + symbol + "' from state '" + currentState + "'");
-                System.out.println("Execution terminated");
-                error = true;
-                break;
+    private static void bulkStates(String command, int pos, int lineNumber, LoadDiagnostics diagnostics) {
+        int length = command.length();
+        while (pos < length) {
+            int end = pos;
+            while (end < length && !isWhitespace(command.charAt(end))) {
+                end++;
             }
+            String state = command.substring(pos, end);
+            if (!isAlphanumeric(state)) {
+                diagnostics.report("state is not alphanumeric", lineNumber,
+                        "State '" + state + "' is not alphanumeric");
+            } else if (!states.add(state)) {
+                diagnostics.report("state already declared", lineNumber,
+                        "State '" + state + "' was already declared");
+            } else {
+                definitionChanged();
+                if (initialState == null) {
+                    initialState = state;
+                }
+            }
+            pos = skipWhitespace(command, end);
+        }
+    }
 
-            currentState = stateTransitions.get(symbol);
-            path.append(currentState).append(" ");
+    private static void bulkInitialState(String command, int pos, int lineNumber, LoadDiagnostics diagnostics) {
+        int end = pos;
+        while (end < command.length() && !isWhitespace(command.charAt(end))) {
+            end++;
+        }
+        String state = command.substring(pos, end);
+        if (!isAlphanumeric(state)) {
+            diagnostics.report("state is not alphanumeric", lineNumber,
+                    "State '" + state + "' is not alphanumeric");
+            return;
+        }
+        if (states.add(state)) {
+            diagnostics.report("state not previously declared", lineNumber,
+                    "State '" + state + "' was not previously declared");
         }
+        initialState = state;
+        definitionChanged();
+    }
 
-        if (!error) {
-            System.out.print(path.toString().trim());
-            if (finalStates.contains(currentState)) {
-                System.out.println(" YES");
+    private static void bulkFinalStates(String command, int pos, int lineNumber, LoadDiagnostics diagnostics) {
+        int length = command.length();
+        while (pos < length) {
+            int end = pos;
+            while (end < length && !isWhitespace(command.charAt(end))) {
+                end++;
+            }
+            String state = command.substring(pos, end);
+            pos = skipWhitespace(command, end);
+            if (!isAlphanumeric(state)) {
+                diagnostics.report("state is not alphanumeric", lineNumber,
+                        "State '" + state + "' is not alphanumeric");
+                continue;
+            }
+            if (states.add(state)) {
+                definitionChanged();
+                diagnostics.report("state not previously declared", lineNumber,
+                        "State '" + state + "' was not previously declared");
+            }
+            if (!finalStates.add(state)) {
+                diagnostics.report("state already final", lineNumber,
+                        "State '" + state + "' was already declared as final");
             } else {
-                System.out.println(" NO");
+                definitionChanged();
+            }
+        }
+    }
+
+    private static void bulkTransitions(String command, int pos, int lineNumber, LoadDiagnostics diagnostics) {
+        int length = command.length();
+        String[] parts = new String[3];
+        while (pos <= length) {
+            int defEnd = command.indexOf(',', pos);
+            if (defEnd < 0) {
+                defEnd = length;
+            }
+
+            int count = 0;
+            int i = skipWhitespace(command, pos);
+            while (i < defEnd) {
+                int end = i;
+                while (end < defEnd && !isWhitespace(command.charAt(end))) {
+                    end++;
+                }
+                if (count < 3) {
+                    parts[count] = command.substring(i, end);
+                }
+                count++;
+                i = skipWhitespace(command, end);
+            }
+            int from = pos;
+            pos = defEnd + 1;
+
+            if (count == 0) {
+                continue;
+            }
+            if (count != 3) {
+                String def = command.substring(from, defEnd).trim();
+                diagnostics.report("invalid transition format", lineNumber,
+                        "Invalid transition format '" + def + "'");
+                continue;
+            }
+            if (parts[0].equalsIgnoreCase("EPSILON")) {
+                String fromState = upperCase(parts[1]);
+                String toState = upperCase(parts[2]);
+                if (!states.contains(fromState)) {
+                    diagnostics.report("state not declared", lineNumber, "State '" + fromState + "' not declared");
+                } else if (!states.contains(toState)) {
+                    diagnostics.report("state not declared", lineNumber, "State '" + toState + "' not declared");
+                } else if (addEpsilon(fromState, toState)) {
+                    definitionChanged();
+                }
+                continue;
+            }
+            if (parts[0].length() != 1) {
+                String def = command.substring(from, defEnd).trim();
+                diagnostics.report("symbol must be single character", lineNumber,
+                        "Symbol must be single character in '" + def + "'");
+                continue;
+            }
+            char symbol = parts[0].charAt(0);
+            String fromState = upperCase(parts[1]);
+            String toState = upperCase(parts[2]);
+
+            if (!symbols.contains(symbol)) {
+                diagnostics.report("symbol not declared", lineNumber, "Symbol '" + symbol + "' not declared");
+                continue;
+            }
+            if (!states.contains(fromState)) {
+                diagnostics.report("state not declared", lineNumber, "State '" + fromState + "' not declared");
+                continue;
+            }
+            if (!states.contains(toState)) {
+                diagnostics.report("state not declared", lineNumber, "State '" + toState + "' not declared");
+                continue;
+            }
+
+            removeExtraTargets(fromState, symbol);
+            String previous = transitions.computeIfAbsent(fromState, k -> new HashMap<>()).put(symbol, toState);
+            if (previous != null && !previous.equals(toState)) {
+                diagnostics.report("transition overridden", lineNumber,
+                        "Overriding transition for symbol '" + symbol + "' and state '" + fromState + "'");
             }
+            definitionChanged();
+        }
+    }
+
+    // The characters matched by \s in the regular expressions used by the normal handlers
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static int skipWhitespace(String s, int pos) {
+        while (pos < s.length() && isWhitespace(s.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    // Same as s.matches("[a-zA-Z0-9]+")
+    private static boolean isAlphanumeric(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same as s.toUpperCase(), without the copy when there is nothing to change
+    private static String upperCase(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0x7F || (c >= 'a' && c <= 'z')) {
+                return s.toUpperCase();
+            }
+        }
+        return s;
+    }
+
+    private static void handleMinimize() {
+        materialize();
+        if (!requireDeterministic("MINIMIZE")) {
+            return;
+        }
+        if (initialState == null) {
+            System.out.println("Error: No initial state defined");
+            return;
+        }
+
+        long start = System.nanoTime();
+        int statesBefore = states.size();
+        int transitionsBefore = countTransitions();
+
+        Minimizer minimizer = new Minimizer(compiledFSM());
+        minimizer.minimize();
+        journal = null;
+        setDefinition(symbols, minimizer.states, minimizer.initialState, minimizer.finalStates, minimizer.transitions);
+        definitionChanged();
+
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("FSM minimized: %d -> %d states, %d -> %d transitions in %.1f ms%n",
+                statesBefore, states.size(), transitionsBefore, countTransitions(), elapsed / 1e6);
+    }
+
+    // ANALYZE [@name]
+    private static void handleAnalyze(String args) {
+        CompiledFSM fsm;
+        if (args.startsWith("@")) {
+            fsm = namedFSM(args.substring(1).trim());
+            if (fsm == null) {
+                return;
+            }
+        } else {
+            if (!requireDeterministic("ANALYZE")) {
+                return;
+            }
+            fsm = compiledFSM();
+        }
+
+        GraphAnalysis analysis = fsm.analysis();
+        int n = fsm.stateCount();
+        System.out.printf("Analysis: %d states, %d reachable from the initial state, %d can reach a final state%n",
+                n, analysis.reachableCount, analysis.liveCount);
+        printStates("Unreachable states", fsm, n - analysis.reachableCount, s -> !analysis.isReachable(s));
+        printStates("Dead states", fsm, n - analysis.liveCount, analysis::isDead);
+        printStates("Sink states", fsm, analysis.sinkCount, analysis::isSink);
+        System.out.printf("Strongly connected components: %d, largest %d states, %d with a cycle%n",
+                analysis.componentCount, analysis.largestComponent, analysis.cyclicComponents);
+
+        StringBuilder sb = new StringBuilder("Out-degree:");
+        for (int b = 0; b < analysis.degreeBuckets.length; b++) {
+            if (analysis.degreeBuckets[b] == 0) {
+                continue;
+            }
+            int low = b == 0 ? 0 : 1 << (b - 1);
+            int high = b == 0 ? 0 : (1 << b) - 1;
+            sb.append(' ').append(low == high ? String.valueOf(low) : low + "-" + high)
+                    .append(": ").append(analysis.degreeBuckets[b]).append(',');
+        }
+        System.out.println(sb.charAt(sb.length() - 1) == ',' ? sb.substring(0, sb.length() - 1) : sb + " none");
+        System.out.printf("Analyzed in %.1f ms%n", analysis.nanos / 1e6);
+    }
+
+    // Lists up to ANALYZE_LISTED names of the states matching the predicate
+    private static void printStates(String title, CompiledFSM fsm, int count, IntPredicate in) {
+        StringBuilder sb = new StringBuilder(title).append(": ").append(count);
+        if (count > 0) {
+            String separator = " [";
+            int listed = 0;
+            for (int s = 0; s < fsm.stateCount() && listed < ANALYZE_LISTED; s++) {
+                if (in.test(s)) {
+                    sb.append(separator).append(fsm.stateName(s));
+                    separator = ", ";
+                    listed++;
+                }
+            }
+            sb.append(count > listed ? ", ...]" : "]");
+        }
+        System.out.println(sb);
+    }
+
+    private static int countTransitions() {
+        int count = 0;
+        for (Map<Character, String> stateTransitions : transitions.values()) {
+            count += stateTransitions.size();
+        }
+        return count;
+    }
+
+    // STORAGE [COMPACT | STANDARD]
+    private static void handleStorage(String args) {
+        if (args.isEmpty()) {
+            if (definitionMapped) {
+                CompiledFSM fsm = compiled;
+                System.out.printf("Storage: mapped compiled file, %d states, %.1f MB (%.1f bytes per state)%n",
+                        fsm.stateCount(), fsm.sizeInBytes() / 1048576.0,
+                        fsm.stateCount() == 0 ? 0.0 : (double) fsm.sizeInBytes() / fsm.stateCount());
+            } else if (compact != null) {
+                System.out.printf("Storage: compact, %d states, %d symbols, %d transitions, %.1f MB "
+                                + "(%.1f bytes per state)%n", compact.stateCount(), compact.symbolCount(),
+                        compact.transitionCount(), compact.sizeInBytes() / 1048576.0,
+                        compact.stateCount() == 0 ? 0.0 : (double) compact.sizeInBytes() / compact.stateCount());
+            } else {
+                System.out.println("Storage: standard, " + states.size() + " states");
+            }
+            return;
+        }
+
+        materialize();
+        switch (args.toUpperCase()) {
+            case "COMPACT":
+                if (compact == null) {
+                    compact = new CompactFSM();
+                    setDefinition(symbols, states, initialState, finalStates, transitions);
+                }
+                break;
+            case "STANDARD":
+                if (compact != null) {
+                    Map<String, Map<Character, String>> copy = new HashMap<>();
+                    for (Map.Entry<String, Map<Character, String>> entry : transitions.entrySet()) {
+                        copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                    }
+                    compact = null;
+                    setDefinition(new HashSet<>(symbols), new HashSet<>(states), initialState,
+                            new HashSet<>(finalStates), copy);
+                }
+                break;
+            default:
+                System.out.println("Error: Usage STORAGE [COMPACT | STANDARD]");
+                return;
+        }
+        definitionChanged();
+        handleStorage("");
+    }
+
+    // EXECUTE [-verdict | -trace <file> | -parallel [-threads <n>]] [@name] <string or file>
+    // EXECUTE -multi <name>,<name>,... <string>
+    private static void handleExecute(String args, CompiledFSM fsm) {
+        boolean verdictOnly = false;
+        String traceFile = null;
+        int parallelThreads = 0;
+        String[] option = args.split("\\s+", 2);
+        if (option[0].equalsIgnoreCase("-multi")) {
+            executeMulti(option.length > 1 ? option[1] : "");
+            return;
+        }
+        if (option[0].equalsIgnoreCase("-parallel")) {
+            parallelThreads = Runtime.getRuntime().availableProcessors();
+            args = option.length > 1 ? option[1] : "";
+            String[] threads = args.split("\\s+", 3);
+            if (threads[0].equalsIgnoreCase("-threads")) {
+                try {
+                    parallelThreads = Integer.parseInt(threads.length > 1 ? threads[1] : "");
+                    if (parallelThreads < 1) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Error: Invalid thread count '" + (threads.length > 1 ? threads[1] : "") + "'");
+                    System.out.println("Execution terminated");
+                    return;
+                }
+                args = threads.length > 2 ? threads[2] : "";
+            }
+        } else if (option[0].equalsIgnoreCase("-verdict")) {
+            verdictOnly = true;
+            args = option.length > 1 ? option[1] : "";
+        } else if (option[0].equalsIgnoreCase("-trace")) {
+            String[] rest = option.length > 1 ? option[1].split("\\s+", 2) : new String[0];
+            if (rest.length < 1 || rest[0].isEmpty()) {
+                System.out.println("Error: No trace file specified");
+                System.out.println("Execution terminated");
+                return;
+            }
+            traceFile = rest[0];
+            args = rest.length > 1 ? rest[1] : "";
+        }
+
+        if (args.startsWith("@")) {
+            String[] named = args.split("\\s+", 2);
+            fsm = namedFSM(named[0].substring(1));
+            if (fsm == null) {
+                System.out.println("Execution terminated");
+                return;
+            }
+            args = named.length > 1 ? named[1] : "";
+        }
+
+        if (args.isEmpty()) {
+            System.out.println("Error: No input string specified");
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        // No compiled machine means the current definition is nondeterministic
+        if (fsm == null) {
+            if (parallelThreads > 0) {
+                requireDeterministic("EXECUTE -parallel");
+                System.out.println("Execution terminated");
+                return;
+            }
+            executeNondeterministic(args, verdictOnly, traceFile);
+            return;
+        }
+
+        if (fsm.initialState == CompiledFSM.NONE) {
+            System.out.println("Error: No initial state defined");
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        if (parallelThreads > 0) {
+            executeParallel(fsm, args, parallelThreads);
+            return;
+        }
+
+        // First pass only finds the verdict; the path is replayed afterwards in
+        // chunks, so memory stays constant however long the input is. The pass
+        // stops once it enters a dead state, where the input can no longer be accepted.
+        GraphAnalysis analysis = fsm.analysis();
+        long result;
+        if (executionStats.isEnabled()) {
+            result = executionStats.run(fsm, args);
+            if (analysis.isDead(CompiledFSM.stateOf(result))) {
+                result = analysis.runUntilDead(args);
+            }
+        } else {
+            result = analysis.runUntilDead(args);
+        }
+        int stoppedAt = CompiledFSM.stoppedAt(result);
+        int currentState = CompiledFSM.stateOf(result);
+        boolean rejectedEarly = stoppedAt < args.length() && analysis.isDead(currentState);
+
+        if (stoppedAt < args.length() && !rejectedEarly) {
+            System.out.println("Error: " + stopReason(fsm, Character.toUpperCase(args.charAt(stoppedAt)), currentState));
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        String verdict = fsm.isFinal(currentState) ? "YES" : "NO";
+        if (rejectedEarly) {
+            verdict += String.format(" (rejected after %d of %d symbols: %s cannot reach a final state)",
+                    stoppedAt, args.length(), fsm.stateName(currentState));
+        }
+        if (verdictOnly) {
+            System.out.println(fsm.stateName(currentState) + " " + verdict);
+            return;
+        }
+
+        String consumed = args.substring(0, stoppedAt);
+        if (traceFile != null) {
+            try (Writer writer = new BufferedWriter(new FileWriter(traceFile), 1 << 16)) {
+                fsm.writePath(consumed, writer);
+                writer.write('\n');
+            } catch (IOException e) {
+                System.out.println("Error writing to file '" + traceFile + "': " + e.getMessage());
+                return;
+            }
+            System.out.println(fsm.stateName(currentState) + " " + verdict + " (path written to " + traceFile + ")");
+            return;
+        }
+
+        try {
+            Writer console = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            fsm.writePath(consumed, console);
+            console.write(" " + verdict + System.lineSeparator());
+            console.flush();
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    static boolean isSessionCommand(String cmd) {
+        return cmd.equals("BEGIN") || cmd.equals("FEED") || cmd.equals("QUERY") || cmd.equals("END")
+                || cmd.equals("SESSIONS");
+    }
+
+    /**
+     * BEGIN <session> [@name] | FEED <session> <symbols> | QUERY <session> |
+     * END <session> | SESSIONS. fsm is the current definition's machine, null
+     * when it is nondeterministic. FEED prints nothing unless the run stops.
+     */
+    private static void handleSession(String cmd, String args, CompiledFSM fsm) {
+        if (cmd.equals("SESSIONS")) {
+            List<String> names = new ArrayList<>(sessions.keySet());
+            Collections.sort(names);
+            System.out.println(names.size() + " sessions open" + (names.isEmpty() ? "" : ": " + String.join(", ", names)));
+            return;
+        }
+        if (cmd.equals("BEGIN")) {
+            beginSession(args, fsm);
+            return;
+        }
+
+        String[] parts = args.split("\\s+", 2);
+        if (parts[0].isEmpty() || (cmd.equals("FEED") ? parts.length < 2 : parts.length > 1)) {
+            System.out.println("Error: Usage " + cmd + " <session>" + (cmd.equals("FEED") ? " <symbols>" : ""));
+            return;
+        }
+        String id = parts[0];
+        ExecutionSession session = cmd.equals("END") ? sessions.remove(id) : sessions.get(id);
+        if (session == null) {
+            System.out.println("Error: Session '" + id + "' not found");
+            return;
+        }
+
+        CompiledFSM current = session.machineName == null ? fsm : registeredFSM(session.machineName);
+        int status = cmd.equals("FEED") ? session.feed(current, parts[1]) : session.check(current);
+        if (status == ExecutionSession.STALE) {
+            System.out.println("Error: Session '" + id + "' was started on an FSM that has changed since");
+        } else if (status == ExecutionSession.STOPPED) {
+            System.out.println("Error: " + stopReason(session.fsm(), session.stopSymbol(), session.state()));
+        }
+
+        if (cmd.equals("QUERY")) {
+            CompiledFSM sessionFSM = session.fsm();
+            String where = status == ExecutionSession.RUNNING ? "in"
+                    : status == ExecutionSession.STOPPED ? "stopped in" : "stale in";
+            System.out.println(id + ": " + where + " " + sessionFSM.stateName(session.state()) + " after "
+                    + session.consumed() + " symbols" + (status == ExecutionSession.RUNNING
+                    ? (sessionFSM.isFinal(session.state()) ? ", YES so far" : ", NO so far") : ""));
+        } else if (cmd.equals("END")) {
+            if (status != ExecutionSession.RUNNING) {
+                System.out.println("Execution terminated");
+                return;
+            }
+            CompiledFSM sessionFSM = session.fsm();
+            System.out.println(sessionFSM.stateName(session.state()) + " "
+                    + (sessionFSM.isFinal(session.state()) ? "YES" : "NO"));
+        }
+    }
+
+    private static void beginSession(String args, CompiledFSM fsm) {
+        String[] parts = args.split("\\s+");
+        if (parts[0].isEmpty() || parts.length > 2 || (parts.length == 2 && !parts[1].startsWith("@"))) {
+            System.out.println("Error: Usage BEGIN <session> [@name]");
+            return;
+        }
+        String id = parts[0];
+        if (!isAlphanumeric(id)) {
+            System.out.println("Error: Session name '" + id + "' is not alphanumeric");
+            return;
+        }
+        String machineName = null;
+        if (parts.length == 2) {
+            machineName = parts[1].substring(1);
+            fsm = namedFSM(machineName);
+            if (fsm == null) {
+                return;
+            }
+        } else if (fsm == null) {
+            requireDeterministic("BEGIN");
+            return;
+        }
+        if (fsm.initialState == CompiledFSM.NONE) {
+            System.out.println("Error: No initial state defined");
+            return;
+        }
+        if (sessions.putIfAbsent(id, new ExecutionSession(machineName, fsm)) != null) {
+            System.out.println("Error: Session '" + id + "' already exists");
+            return;
+        }
+        System.out.println("Session '" + id + "' started");
+    }
+
+    // Like namedFSM without the error messages: a session whose machine is gone just becomes stale
+    private static CompiledFSM registeredFSM(String name) {
+        try {
+            return registry.contains(name) ? registry.get(name) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Why a run stopped on symbol in state, as EXECUTE reports it
+    private static String stopReason(CompiledFSM fsm, char symbol, int state) {
+        String stateName = fsm.stateName(state);
+        if (fsm.symbolId(symbol) == CompiledFSM.NONE) {
+            return "Symbol '" + symbol + "' not declared";
+        } else if (!fsm.hasTransitions(state)) {
+            return "No transitions defined from state '" + stateName + "'";
+        }
+        return "No transition for symbol '" + symbol + "' from state '" + stateName + "'";
+    }
+
+    // EXECUTE -multi: every named machine over the same input in one pass
+    private static void executeMulti(String args) {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            System.out.println("Error: Usage EXECUTE -multi <name>,<name>,... <string>");
+            System.out.println("Execution terminated");
+            return;
+        }
+        String[] names = parts[0].split(",");
+        String input = parts[1];
+        CompiledFSM[] machines = new CompiledFSM[names.length];
+        for (int m = 0; m < names.length; m++) {
+            machines[m] = namedFSM(names[m]);
+            if (machines[m] == null) {
+                System.out.println("Execution terminated");
+                return;
+            }
+            if (machines[m].initialState == CompiledFSM.NONE) {
+                System.out.println("Error: No initial state defined in FSM '" + names[m] + "'");
+                System.out.println("Execution terminated");
+                return;
+            }
+        }
+
+        MultiExecutor executor = multiExecutor;
+        if (executor == null || !executor.runsOn(machines)) {
+            executor = new MultiExecutor(machines);
+            multiExecutor = executor;
+        }
+        long[] results;
+        // Server connections run EXECUTE concurrently and the product is built as it runs
+        synchronized (executor) {
+            results = executor.run(input);
+        }
+        for (int m = 0; m < machines.length; m++) {
+            int stoppedAt = CompiledFSM.stoppedAt(results[m]);
+            int state = CompiledFSM.stateOf(results[m]);
+            if (stoppedAt < input.length()) {
+                System.out.println(names[m] + " Error: "
+                        + stopReason(machines[m], Character.toUpperCase(input.charAt(stoppedAt)), state));
+            } else {
+                System.out.println(names[m] + " " + machines[m].stateName(state) + " "
+                        + (machines[m].isFinal(state) ? "YES" : "NO"));
+            }
+        }
+    }
+
+    // EXECUTE -parallel: the whole file is one input, split across threads
+    private static void executeParallel(CompiledFSM fsm, String fileName, int threads) {
+        ParallelExecutor executor = new ParallelExecutor(fsm, threads);
+        try {
+            executor.execute(new File(fileName).toPath());
+        } catch (NoSuchFileException e) {
+            System.out.println("Error: File '" + fileName + "' not found");
+            System.out.println("Execution terminated");
+            return;
+        } catch (IOException e) {
+            System.out.println("Error executing file '" + fileName + "': " + e.getMessage());
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        int stoppedAt = CompiledFSM.stoppedAt(executor.result);
+        int currentState = CompiledFSM.stateOf(executor.result);
+        if (stoppedAt < executor.length) {
+            System.out.println("Error: " + stopReason(fsm, executor.stopSymbol, currentState)
+                    + " at position " + stoppedAt);
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        System.out.println(fsm.stateName(currentState) + " " + (fsm.isFinal(currentState) ? "YES" : "NO"));
+        System.out.printf("Executed %d symbols in %.1f ms (%.1f MB/sec), %d chunks on %d threads, "
+                        + "%d states speculated, %d chunks rerun%n",
+                executor.length, executor.elapsedNanos / 1e6, executor.bytesPerSecond() / (1 << 20),
+                executor.chunks, threads, executor.speculatedStates, executor.unresolvedChunks);
+    }
+
+    private static void executeNondeterministic(String input, boolean verdictOnly, String traceFile) {
+        LazyDFA nfa = lazyDFA();
+        if (!nfa.hasInitialState()) {
+            System.out.println("Error: No initial state defined");
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        LazyDFA.Run run = nfa.run(input);
+        if (run.stoppedAt < input.length()) {
+            char symbol = Character.toUpperCase(input.charAt(run.stoppedAt));
+            if (nfa.symbolId(symbol) == CompiledFSM.NONE) {
+                System.out.println("Error: Symbol '" + symbol + "' not declared");
+            } else {
+                System.out.println("Error: No transition for symbol '" + symbol + "' from states "
+                        + nfa.names(run.active));
+            }
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        String verdict = run.accepted ? "YES" : "NO";
+        if (verdictOnly) {
+            System.out.println(nfa.names(run.active) + " " + verdict);
+            return;
+        }
+
+        if (traceFile != null) {
+            try (Writer writer = new BufferedWriter(new FileWriter(traceFile), 1 << 16)) {
+                nfa.writePath(input, writer);
+                writer.write('\n');
+            } catch (IOException e) {
+                System.out.println("Error writing to file '" + traceFile + "': " + e.getMessage());
+                return;
+            }
+            System.out.println(nfa.names(run.active) + " " + verdict + " (path written to " + traceFile + ")");
+            return;
+        }
+
+        try {
+            Writer console = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            nfa.writePath(input, console);
+            console.write(" " + verdict + System.lineSeparator());
+            console.flush();
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    // EXECUTE-FILE [@name] <input file> <output file>
+    // EXECUTE-FILE [-prefix [-cache <entries>]] [@name] <input file> <output file>
+    private static void handleExecuteFile(String args, CompiledFSM fsm) {
+        boolean sharePrefixes = false;
+        int cacheEntries = 0;
+        String[] option = args.trim().split("\\s+", 2);
+        if (option[0].equalsIgnoreCase("-prefix")) {
+            sharePrefixes = true;
+            args = option.length > 1 ? option[1] : "";
+            String[] cacheOption = args.split("\\s+", 3);
+            if (cacheOption[0].equalsIgnoreCase("-cache")) {
+                try {
+                    cacheEntries = Integer.parseInt(cacheOption.length > 1 ? cacheOption[1] : "");
+                    if (cacheEntries < 1 || cacheEntries > MAX_PREFIX_CACHE_ENTRIES) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Error: Invalid cache size '" + (cacheOption.length > 1 ? cacheOption[1] : "")
+                            + "', expected 1 to " + MAX_PREFIX_CACHE_ENTRIES + " entries");
+                    return;
+                }
+                args = cacheOption.length > 2 ? cacheOption[2] : "";
+            }
+        }
+
+        if (args.startsWith("@")) {
+            String[] named = args.split("\\s+", 2);
+            fsm = namedFSM(named[0].substring(1));
+            if (fsm == null) {
+                return;
+            }
+            args = named.length > 1 ? named[1] : "";
+        }
+
+        String[] files = args.trim().split("\\s+");
+        if (args.trim().isEmpty() || files.length != 2) {
+            System.out.println("Error: Usage EXECUTE-FILE [-prefix [-cache <entries>]] [@name] <input file> <output file>");
+            return;
+        }
+
+        boolean noInitialState = fsm == null ? !lazyDFA().hasInitialState() : fsm.initialState == CompiledFSM.NONE;
+        if (noInitialState) {
+            System.out.println("Error: No initial state defined");
+            System.out.println("Execution terminated");
+            return;
+        }
+
+        if (sharePrefixes && fsm == null) {
+            requireDeterministic("EXECUTE-FILE -prefix");
+            return;
+        }
+        if (sharePrefixes && executionStats.isEnabled()) {
+            System.out.println("Warning: -prefix runs are not counted by STATS");
+        }
+
+        BatchExecutor batch;
+        if (sharePrefixes) {
+            batch = new BatchExecutor(fsm, cacheEntries > 0 ? prefixCache(cacheEntries) : null);
+        } else {
+            batch = fsm == null ? new BatchExecutor(lazyDFA()) : new BatchExecutor(fsm, executionStats);
+        }
+        try {
+            batch.execute(new File(files[0]).toPath(), new File(files[1]).toPath());
+        } catch (IOException e) {
+            System.out.println("Error executing file '" + files[0] + "': " + e.getMessage());
+            return;
+        }
+        System.out.printf("Executed %d strings: %d YES, %d NO (%d stopped by errors)%n",
+                batch.total, batch.accepted, batch.rejected + batch.failed, batch.failed);
+        System.out.printf("Results written to %s in %.1f ms (%.0f strings/sec)%n",
+                files[1], batch.elapsedNanos / 1e6, batch.stringsPerSecond());
+        if (sharePrefixes && batch.symbols > 0) {
+            System.out.printf("Prefix reuse: %d of %d symbols skipped (%.1f%%), %d by shared prefixes (%.1f%%), "
+                            + "%d by the cache (%.1f%%)%n",
+                    batch.sharedSymbols + batch.cachedSymbols, batch.symbols,
+                    100.0 * (batch.sharedSymbols + batch.cachedSymbols) / batch.symbols,
+                    batch.sharedSymbols, 100.0 * batch.sharedSymbols / batch.symbols,
+                    batch.cachedSymbols, 100.0 * batch.cachedSymbols / batch.symbols);
+            System.out.printf("Prefix time: %.1f ms sorting, %.1f ms running, about %.1f ms %s than without -prefix%n",
+                    batch.sortNanos / 1e6, batch.runNanos / 1e6, Math.abs(batch.savedMillis()),
+                    batch.savedMillis() >= 0 ? "less" : "more");
+            PrefixCache cache = prefixCache;
+            if (cacheEntries > 0 && cache != null) {
+                long lookups = cache.lookups.sum();
+                System.out.printf("Prefix cache: %d entries, %d hits in %d lookups (%.1f%%) since the last change%n",
+                        cache.capacity(), cache.hits.sum(), lookups,
+                        lookups == 0 ? 0.0 : 100.0 * cache.hits.sum() / lookups);
+            }
+        }
+    }
+
+    // The prefix cache of EXECUTE-FILE -prefix -cache, recreated when asked for a different size
+    private static synchronized PrefixCache prefixCache(int entries) {
+        PrefixCache cache = prefixCache;
+        if (cache == null || cache.capacity() != PrefixCache.capacityFor(entries)) {
+            cache = new PrefixCache(entries);
+            prefixCache = cache;
+        }
+        return cache;
+    }
+
+    // SEARCH [-all] [-text] [-max <length>] [-out <file>] <file>
+    private static void handleSearch(String args) {
+        String[] parts = args.trim().split("\\s+");
+        boolean allMatches = false;
+        boolean withText = false;
+        int maxLength = StreamSearcher.DEFAULT_MAX_LENGTH;
+        String outFile = null;
+        int i = 0;
+        try {
+            for (; i < parts.length - 1; i++) {
+                String option = parts[i].toLowerCase();
+                if (option.equals("-all")) {
+                    allMatches = true;
+                } else if (option.equals("-text")) {
+                    withText = true;
+                } else if (option.equals("-max") && i + 2 < parts.length) {
+                    maxLength = Integer.parseInt(parts[++i]);
+                } else if (option.equals("-out") && i + 2 < parts.length) {
+                    outFile = parts[++i];
+                } else {
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Invalid maximum match length '" + parts[i] + "'");
+            return;
+        }
+        if (args.trim().isEmpty() || i != parts.length - 1 || maxLength < 1) {
+            System.out.println("Error: Usage SEARCH [-all] [-text] [-max <length>] [-out <file>] <file>");
+            return;
+        }
+        String fileName = parts[i];
+
+        if (!requireDeterministic("SEARCH")) {
+            return;
+        }
+        CompiledFSM fsm = compiledFSM();
+        if (fsm.initialState == CompiledFSM.NONE) {
+            System.out.println("Error: No initial state defined");
+            return;
+        }
+
+        StreamSearcher searcher = new StreamSearcher(fsm, allMatches, withText, maxLength,
+                StreamSearcher.DEFAULT_CHUNK_SIZE);
+        try {
+            Writer out = outFile != null
+                    ? new BufferedWriter(new FileWriter(outFile), 1 << 16)
+                    : new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            try {
+                searcher.search(new File(fileName).toPath(), out);
+            } finally {
+                // Never close System.out
+                if (outFile != null) {
+                    out.close();
+                } else {
+                    out.flush();
+                }
+            }
+        } catch (NoSuchFileException e) {
+            System.out.println("Error: File '" + fileName + "' not found");
+            return;
+        } catch (IOException e) {
+            System.out.println("Error searching file '" + fileName + "': " + e.getMessage());
+            return;
+        }
+        System.out.printf("%d matches in %d bytes in %.1f ms (%.1f MB/sec)%n", searcher.matches, searcher.bytes,
+                searcher.elapsedNanos / 1e6, searcher.bytesPerSecond() / (1 << 20));
+    }
+
+    // STATS [ON | OFF | RESET | DUMP <file>]
+    private static void handleStats(String args) {
+        String[] parts = args.trim().split("\\s+");
+        String sub = parts[0].toUpperCase();
+        CompiledFSM fsm = compiledFSM();
+        switch (sub) {
+            case "":
+                PrintWriter console = new PrintWriter(new OutputStreamWriter(System.out));
+                executionStats.print(fsm, console, false);
+                if (isNondeterministic()) {
+                    LazyDFA nfa = lazyDFA();
+                    console.printf("Lazy DFA: %d states cached, %d KB of %d KB, %d flushes, "
+                                    + "%d of %d steps computed, %d simulated on the NFA%n",
+                            nfa.cachedStates(), nfa.cacheBytes() >> 10, nfa.maxCacheBytes() >> 10, nfa.flushes,
+                            nfa.misses, nfa.steps, nfa.simulatedSteps);
+                }
+                console.flush();
+                break;
+            case "ON":
+                executionStats.setEnabled(true);
+                System.out.println("Statistics enabled");
+                TransitionCounters counters = fsm.counters();
+                System.out.printf("Transition counters: up to %.1f MB (%d x %.1f MB stripes)%n",
+                        counters.maxBytes() / 1048576.0, counters.stripeCount(),
+                        counters.maxBytes() / 1048576.0 / counters.stripeCount());
+                break;
+            case "OFF":
+                executionStats.setEnabled(false);
+                System.out.println("Statistics disabled");
+                break;
+            case "RESET":
+                executionStats.reset(fsm);
+                System.out.println("Statistics reset");
+                break;
+            case "DUMP":
+                if (parts.length != 2) {
+                    System.out.println("Error: No filename specified");
+                    return;
+                }
+                try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(parts[1])))) {
+                    executionStats.print(fsm, writer, true);
+                    System.out.println("Statistics written to " + parts[1]);
+                } catch (IOException e) {
+                    System.out.println("Error writing to file '" + parts[1] + "': " + e.getMessage());
+                }
+                break;
+            default:
+                System.out.println("Error: Usage STATS [ON | OFF | RESET | DUMP <file>]");
+        }
+    }
+
+    // FSM CREATE <name> <file> | ADD <name> <file> | USE <name> | REMOVE <name> | LIST | CACHE <MB> | STATS
+    private static void handleFsm(String args) {
+        String[] parts = args.trim().split("\\s+");
+        String sub = parts[0].toUpperCase();
+        int expected = sub.equals("UNION") || sub.equals("INTERSECTION") || sub.equals("DIFFERENCE") ? 5
+                : sub.equals("COMPLEMENT") ? 4
+                : sub.equals("CREATE") || sub.equals("ADD") ? 3
+                : sub.equals("USE") || sub.equals("REMOVE") || sub.equals("CACHE") ? 2 : 1;
+        if (parts.length != expected) {
+            System.out.println("Error: Usage FSM CREATE <name> <file> | ADD <name> <file> | USE <name> | "
+                    + "REMOVE <name> | LIST | CACHE <megabytes> | STATS | "
+                    + "UNION|INTERSECTION|DIFFERENCE <name> <fsm> <fsm> <file> | COMPLEMENT <name> <fsm> <file>");
+            return;
+        }
+        if (expected > 1 && !sub.equals("CACHE") && !parts[1].matches("[a-zA-Z0-9]+")) {
+            System.out.println("Error: FSM name '" + parts[1] + "' is not alphanumeric");
+            return;
+        }
+
+        switch (sub) {
+            case "CREATE":
+                if (!requireDeterministic("FSM CREATE")) {
+                    return;
+                }
+                try {
+                    FSMBinaryFormat.write(compiledFSM(), new File(parts[2]).toPath());
+                } catch (IOException e) {
+                    System.out.println("Error compiling to file '" + parts[2] + "': " + e.getMessage());
+                    return;
+                }
+                registry.register(parts[1], new File(parts[2]).toPath());
+                System.out.println("FSM '" + parts[1] + "' compiled to " + parts[2]);
+                break;
+            case "ADD":
+                if (!FSMBinaryFormat.isBinaryFile(new File(parts[2]).toPath())) {
+                    System.out.println("Error: '" + parts[2] + "' is not a compiled FSM file");
+                    return;
+                }
+                registry.register(parts[1], new File(parts[2]).toPath());
+                System.out.println("FSM '" + parts[1] + "' added from " + parts[2]);
+                break;
+            case "USE":
+                CompiledFSM fsm = namedFSM(parts[1]);
+                if (fsm != null) {
+                    useCompiled(fsm);
+                    System.out.println("Using FSM '" + parts[1] + "'");
+                }
+                break;
+            case "REMOVE":
+                if (registry.remove(parts[1])) {
+                    System.out.println("FSM '" + parts[1] + "' removed");
+                } else {
+                    System.out.println("Error: FSM '" + parts[1] + "' not found");
+                }
+                break;
+            case "LIST":
+                if (registry.machines().isEmpty()) {
+                    System.out.println("No named FSMs");
+                }
+                for (Map.Entry<String, Path> entry : registry.machines().entrySet()) {
+                    System.out.println(entry.getKey() + " " + entry.getValue()
+                            + (registry.isCached(entry.getKey()) ? " (cached)" : ""));
+                }
+                break;
+            case "CACHE":
+                try {
+                    long megabytes = Long.parseLong(parts[1]);
+                    if (megabytes < 0) {
+                        throw new NumberFormatException(parts[1]);
+                    }
+                    registry.setMaxCacheBytes(megabytes << 20);
+                    System.out.println("FSM cache limit set to " + megabytes + " MB");
+                } catch (NumberFormatException e) {
+                    System.out.println("Error: Invalid cache size '" + parts[1] + "'");
+                }
+                break;
+            case "UNION":
+            case "INTERSECTION":
+            case "DIFFERENCE":
+            case "COMPLEMENT":
+                buildProduct(ProductFSM.Operation.valueOf(sub), parts);
+                break;
+            case "STATS":
+                long lookups = registry.hits + registry.misses;
+                System.out.printf("FSM cache: %d of %d machines cached, %d KB of %d KB%n",
+                        registry.cachedCount(), registry.machines().size(),
+                        registry.cacheBytes() >> 10, registry.maxCacheBytes() >> 10);
+                System.out.printf("%d hits, %d misses (%.1f%% hit ratio), %d evictions%n",
+                        registry.hits, registry.misses, lookups == 0 ? 0.0 : 100.0 * registry.hits / lookups,
+                        registry.evictions);
+                break;
+            default:
+                System.out.println("Error: Invalid FSM command '" + parts[0] + "'");
+        }
+    }
+
+    // FSM UNION|INTERSECTION|DIFFERENCE <name> <a> <b> <file> | COMPLEMENT <name> <a> <file>
+    private static void buildProduct(ProductFSM.Operation operation, String[] parts) {
+        boolean binary = operation != ProductFSM.Operation.COMPLEMENT;
+        CompiledFSM a = namedFSM(parts[2]);
+        CompiledFSM b = binary ? namedFSM(parts[3]) : null;
+        if (a == null || (binary && b == null)) {
+            return;
+        }
+        if (a.initialState == CompiledFSM.NONE || (binary && b.initialState == CompiledFSM.NONE)) {
+            System.out.println("Error: No initial state defined");
+            return;
+        }
+
+        long start = System.nanoTime();
+        ProductFSM product = new ProductFSM(operation, a, b);
+        product.build();
+        CompiledFSM fsm = CompiledFSM.build(product.symbols, product.states, product.initialState,
+                product.finalStates, product.transitions);
+        String file = parts[parts.length - 1];
+        try {
+            FSMBinaryFormat.write(fsm, new File(file).toPath());
+        } catch (IOException e) {
+            System.out.println("Error compiling to file '" + file + "': " + e.getMessage());
+            return;
+        }
+        registry.register(parts[1], new File(file).toPath());
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("FSM '%s' compiled to %s: %s with %d states, %d transitions in %.1f ms%n", parts[1], file,
+                operation.name().toLowerCase(), fsm.stateCount(), fsm.transitionCount, elapsed / 1e6);
+    }
+
+    // Looks up a named machine, printing the reason when it is not available
+    private static CompiledFSM namedFSM(String name) {
+        if (!registry.contains(name)) {
+            System.out.println("Error: FSM '" + name + "' not found");
+            return null;
+        }
+        try {
+            return registry.get(name);
+        } catch (IOException e) {
+            System.out.println("Error: Could not load FSM '" + name + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static LazyDFA lazyDFA() {
+        if (lazyDFA == null) {
+            lazyDFA = LazyDFA.build(symbols, states, initialState, finalStates, transitions,
+                    extraTransitions, epsilonTransitions, LazyDFA.DEFAULT_CACHE_BYTES);
+        }
+        return lazyDFA;
+    }
+
+    private static CompiledFSM compiledFSM() {
+        if (compiled == null) {
+            compiled = compact != null ? compact.compile(initialState)
+                    : CompiledFSM.build(symbols, states, initialState, finalStates, transitions);
+        }
+        return compiled;
+    }
+
+    // Replaces the definition with a compiled machine; the collections are filled in lazily
+    private static void useCompiled(CompiledFSM fsm) {
+        journal = null;
+        setDefinition(new HashSet<>(), new HashSet<>(),
+                fsm.initialState == CompiledFSM.NONE ? null : fsm.stateName(fsm.initialState),
+                new HashSet<>(), new HashMap<>());
+        extraTransitions = new HashMap<>();
+        epsilonTransitions = new HashMap<>();
+        compiled = fsm;
+        definitionMapped = true;
+    }
+
+    /**
+     * Makes the given collections the definition. With STORAGE COMPACT they are
+     * copied into a new CompactFSM, otherwise they are used as they are.
+     */
+    private static void setDefinition(Set<Character> newSymbols, Set<String> newStates, String newInitialState,
+                                      Set<String> newFinalStates, Map<String, Map<Character, String>> newTransitions) {
+        if (compact != null) {
+            compact = new CompactFSM();
+            compact.symbols().addAll(newSymbols);
+            compact.states().addAll(newStates);
+            compact.finalStates().addAll(newFinalStates);
+            compact.transitions().putAll(newTransitions);
+            symbols = compact.symbols();
+            states = compact.states();
+            finalStates = compact.finalStates();
+            transitions = compact.transitions();
+        } else {
+            symbols = newSymbols;
+            states = newStates;
+            finalStates = newFinalStates;
+            transitions = newTransitions;
+        }
+        initialState = newInitialState;
+    }
+
+    // Copies a mapped definition into the collections before a command reads or changes them
+    private static void materialize() {
+        if (!definitionMapped) {
+            return;
+        }
+        CompiledFSM fsm = compiled;
+        for (char c : fsm.symbolChars) {
+            symbols.add(c);
+        }
+        for (int s = 0; s < fsm.stateCount(); s++) {
+            String name = fsm.stateName(s);
+            states.add(name);
+            if (fsm.isFinal(s)) {
+                finalStates.add(name);
+            }
+            if (!fsm.hasTransitions(s)) {
+                continue;
+            }
+            Map<Character, String> stateTransitions = new HashMap<>();
+            for (int a = 0; a < fsm.symbolCount(); a++) {
+                int target = fsm.next(s, a);
+                if (target != CompiledFSM.NONE) {
+                    stateTransitions.put(fsm.symbolChars[a], fsm.stateName(target));
+                }
+            }
+            transitions.put(name, stateTransitions);
+        }
+        definitionMapped = false;
+    }
+
+    // Must be called by every command that changes symbols, states or transitions
+    private static void definitionChanged() {
+        definitionVersion++;
+        compiled = null;
+        lazyDFA = null;
+        PrefixCache cache = prefixCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // -batch [-quiet | -errors] [-json] [-out <file>] <script>, see ScriptRunner
+    private static void runScript(String[] args) {
+        int mode = ScriptRunner.ALL;
+        boolean json = false;
+        String outFile = null;
+        int i = 0;
+        for (; i < args.length - 1; i++) {
+            String option = args[i].toLowerCase();
+            if (option.equals("-quiet")) {
+                mode = ScriptRunner.QUIET;
+            } else if (option.equals("-errors")) {
+                mode = ScriptRunner.ERRORS;
+            } else if (option.equals("-json")) {
+                json = true;
+            } else if (option.equals("-out") && i + 2 < args.length) {
+                outFile = args[++i];
+            } else {
+                break;
+            }
+        }
+        if (i != args.length - 1) {
+            System.out.println("Error: Usage FSMMain -batch [-quiet | -errors] [-json] [-out <file>] <script>");
+            return;
+        }
+
+        boolean exit;
+        try (OutputStream file = outFile == null ? null : new FileOutputStream(outFile)) {
+            exit = new ScriptRunner(mode, json, file == null ? System.out : file).run(args[i]);
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.out.println("An error occurred while reading the file: " + e.getMessage());
+            return;
+        }
+        // The sink ends with the summary, so EXIT prints nothing more in batch mode
+        if (exit) {
+            closeLog();
+            System.exit(0);
         }
     }
 
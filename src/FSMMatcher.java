@@ -0,0 +1,8 @@
+/**
+ * A matcher class generated by MatcherGenerator for one machine. run has the
+ * contract of CompiledFSM.run without a path: it runs input[from, to) from
+ * state and returns the stop position and the state there, packed.
+ */
+interface FSMMatcher {
+    long run(int state, CharSequence input, int from, int to);
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Named machines backed by COMPILE files. Compiled machines are kept in an LRU
+ * cache bounded by their estimated size; an evicted machine is mapped again
+ * from its file the next time it is used. Methods are synchronized because
+ * server connections look up machines concurrently.
+ */
+final class FSMRegistry {
+    static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
+    long hits;
+    long misses;
+    long evictions;
+
+    private final Map<String, Path> files = new TreeMap<>();
+    private final LinkedHashMap<String, CompiledFSM> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+    private long maxCacheBytes = DEFAULT_CACHE_BYTES;
+
+    synchronized void register(String name, Path file) {
+        files.put(name, file);
+        evict(name);
+    }
+
+    synchronized boolean remove(String name) {
+        evict(name);
+        return files.remove(name) != null;
+    }
+
+    synchronized boolean contains(String name) {
+        return files.containsKey(name);
+    }
+
+    synchronized Map<String, Path> machines() {
+        return new TreeMap<>(files);
+    }
+
+    synchronized boolean isCached(String name) {
+        return cache.containsKey(name);
+    }
+
+    /** Returns the named machine, mapping its file on a cache miss. */
+    synchronized CompiledFSM get(String name) throws IOException {
+        CompiledFSM fsm = cache.get(name);
+        if (fsm != null) {
+            hits++;
+            return fsm;
+        }
+        Path file = files.get(name);
+        if (file == null) {
+            return null;
+        }
+        misses++;
+        fsm = FSMBinaryFormat.map(file);
+        MatcherGenerator.attachSaved(fsm, file);
+        cache.put(name, fsm);
+        cacheBytes += fsm.sizeInBytes();
+        trim(name);
+        return fsm;
+    }
+
+    synchronized void setMaxCacheBytes(long maxCacheBytes) {
+        this.maxCacheBytes = maxCacheBytes;
+        trim(null);
+    }
+
+    synchronized long maxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    synchronized long cacheBytes() {
+        return cacheBytes;
+    }
+
+    synchronized int cachedCount() {
+        return cache.size();
+    }
+
+    // Evicts least recently used machines until the cache fits, never the one just loaded
+    private void trim(String keep) {
+        Iterator<Map.Entry<String, CompiledFSM>> it = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            Map.Entry<String, CompiledFSM> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            cacheBytes -= entry.getValue().sizeInBytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private void evict(String name) {
+        CompiledFSM fsm = cache.remove(name);
+        if (fsm != null) {
+            cacheBytes -= fsm.sizeInBytes();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the command language on a localhost TCP port, one virtual thread per
+ * connection. Commands are read exactly like the interactive console reads
+ * them, up to the next ';', and their output goes back to the connection.
+ *
+ * EXECUTE, EXECUTE-FILE and the session commands (BEGIN, FEED, QUERY, END,
+ * SESSIONS) run against the last published snapshot and never wait for the
+ * definition lock. Every other command runs under the lock and
+ * publishes a new snapshot when it is done. BATCH; holds the lock for the
+ * connection until PUBLISH;, so a multi-command redefinition becomes visible
+ * to other clients all at once. A nondeterministic definition has no snapshot
+ * (its lazy DFA cache is not thread safe), so while one is loaded EXECUTE runs
+ * under the lock as well.
+ */
+final class FSMServer {
+    static final int DEFAULT_PORT = 7070;
+
+    private final int port;
+    private final ReentrantLock definitionLock = new ReentrantLock();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile CompiledFSM published;
+
+    FSMServer(int port) {
+        this.port = port;
+    }
+
+    void run() throws IOException {
+        PrintStream console = System.out;
+        ConnectionOutput output = new ConnectionOutput(console);
+        System.setOut(output);
+        published = FSMMain.snapshot();
+
+        try (ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            console.println("FSM server listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                Thread.ofVirtual()
+                        .name("fsm-client-" + connections.incrementAndGet())
+                        .start(() -> serve(socket, output));
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private void serve(Socket socket, ConnectionOutput output) {
+        boolean inBatch = false;
+        try (socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 14),
+                     false, StandardCharsets.UTF_8)) {
+            output.attach(out);
+            StringBuilder commandBuilder = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(";")) {
+                    continue;
+                }
+                commandBuilder.append(line).append(" ");
+                if (!line.contains(";")) {
+                    continue;
+                }
+                String fullCommand = commandBuilder.toString().trim();
+                String command = fullCommand.substring(0, fullCommand.indexOf(';')).trim();
+                commandBuilder.setLength(0);
+
+                String cmd = command.split("\\s+", 2)[0].toUpperCase();
+                // Read once: another connection may publish a null snapshot at any time
+                CompiledFSM snapshot = published;
+                if (cmd.equals("EXIT")) {
+                    System.out.println("CONNECTION CLOSED");
+                    out.flush();
+                    break;
+                } else if (cmd.equals("BATCH")) {
+                    if (inBatch) {
+                        System.out.println("Error: Batch already started");
+                    } else {
+                        definitionLock.lock();
+                        inBatch = true;
+                        System.out.println("Batch started");
+                    }
+                } else if (cmd.equals("PUBLISH")) {
+                    if (!inBatch) {
+                        System.out.println("Error: No batch started");
+                    } else {
+                        publishAndUnlock();
+                        inBatch = false;
+                        System.out.println("Definition published");
+                    }
+                } else if (!inBatch && snapshot != null && (cmd.equals("EXECUTE") || cmd.equals("EXECUTE-FILE")
+                        || cmd.equals("EXECUTEFILE") || FSMMain.isSessionCommand(cmd))) {
+                    FSMMain.executeCommand(command, snapshot);
+                } else {
+                    // Output of a command run under the lock is held in memory and written to
+                    // the socket after the unlock, so a client that stops reading cannot stall
+                    // the lock holder
+                    ByteArrayOutputStream held = new ByteArrayOutputStream();
+                    output.attach(new PrintStream(held, false, StandardCharsets.UTF_8));
+                    definitionLock.lock();
+                    try {
+                        FSMMain.processCommand(command);
+                    } finally {
+                        output.attach(out);
+                        if (inBatch) {
+                            definitionLock.unlock();
+                        } else {
+                            publishAndUnlock();
+                        }
+                    }
+                    held.writeTo(out);
+                }
+                out.flush();
+                if (out.checkError()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away; nothing to report back
+        } finally {
+            // An unfinished batch is published rather than left holding the lock
+            if (inBatch) {
+                publishAndUnlock();
+            }
+            output.detach();
+        }
+    }
+
+    private void publishAndUnlock() {
+        try {
+            published = FSMMain.snapshot();
+        } finally {
+            definitionLock.unlock();
+        }
+    }
+
+    /**
+     * System.out while serving: every call goes to the PrintStream of the
+     * calling connection thread, or to the original console for any other
+     * thread. It never takes a lock of its own, so a connection blocked on
+     * its socket holds only its own stream.
+     */
+    private static final class ConnectionOutput extends PrintStream {
+        private final PrintStream console;
+        private final ThreadLocal<PrintStream> target = new ThreadLocal<>();
+
+        ConnectionOutput(PrintStream console) {
+            super(console, false, StandardCharsets.UTF_8);
+            this.console = console;
+        }
+
+        void attach(PrintStream out) {
+            target.set(out);
+        }
+
+        void detach() {
+            target.remove();
+        }
+
+        private PrintStream current() {
+            PrintStream out = target.get();
+            return out != null ? out : console;
+        }
+
+        @Override
+        public void write(int b) {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            current().write(b);
+        }
+
+        @Override
+        public void writeBytes(byte[] b) {
+            current().writeBytes(b);
+        }
+
+        @Override
+        public void flush() {
+            current().flush();
+        }
+
+        @Override
+        public void close() {
+            current().flush();
+        }
+
+        @Override
+        public boolean checkError() {
+            return current().checkError();
+        }
+
+        @Override
+        public void print(boolean b) {
+            current().print(b);
+        }
+
+        @Override
+        public void print(char c) {
+            current().print(c);
+        }
+
+        @Override
+        public void print(int i) {
+            current().print(i);
+        }
+
+        @Override
+        public void print(long l) {
+            current().print(l);
+        }
+
+        @Override
+        public void print(float f) {
+            current().print(f);
+        }
+
+        @Override
+        public void print(double d) {
+            current().print(d);
+        }
+
+        @Override
+        public void print(char[] s) {
+            current().print(s);
+        }
+
+        @Override
+        public void print(String s) {
+            current().print(s);
+        }
+
+        @Override
+        public void print(Object obj) {
+            current().print(obj);
+        }
+
+        @Override
+        public void println() {
+            current().println();
+        }
+
+        @Override
+        public void println(boolean x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(char x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(int x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(long x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(float x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(double x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(char[] x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(String x) {
+            current().println(x);
+        }
+
+        @Override
+        public void println(Object x) {
+            current().println(x);
+        }
+
+        @Override
+        public PrintStream printf(String format, Object... args) {
+            return current().printf(format, args);
+        }
+
+        @Override
+        public PrintStream printf(Locale l, String format, Object... args) {
+            return current().printf(l, format, args);
+        }
+
+        @Override
+        public PrintStream format(String format, Object... args) {
+            return current().format(format, args);
+        }
+
+        @Override
+        public PrintStream format(Locale l, String format, Object... args) {
+            return current().format(l, format, args);
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq) {
+            return current().append(csq);
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq, int start, int end) {
+            return current().append(csq, start, end);
+        }
+
+        @Override
+        public PrintStream append(char c) {
+            return current().append(c);
+        }
+    }
+}
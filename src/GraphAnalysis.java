@@ -0,0 +1,252 @@
+import java.util.Arrays;
+
+/**
+ * Graph properties of a CompiledFSM found in one pass: the states reachable
+ * from the initial state, the live states from which a final state can be
+ * reached, sink states, strongly connected components and the distribution
+ * of out-degrees. Computed once per machine, see CompiledFSM.analysis().
+ *
+ * The pass is an iterative Tarjan search started at the initial state, so
+ * the states visited before it returns to the first root are the reachable
+ * ones. Tarjan completes a component only after every component it leads to,
+ * so a component is live when it holds a final state or leads to a live
+ * component, and no reverse graph is needed.
+ *
+ * A state that is not live is dead. Every successor of a dead state is dead
+ * too, so a run that enters one can never accept; EXECUTE uses runUntilDead
+ * to stop there.
+ */
+final class GraphAnalysis {
+    // Symbols run between checks for a dead state in runUntilDead
+    private static final int DEAD_CHECK_CHUNK = 4096;
+
+    final CompiledFSM fsm;
+    final long[] reachable;
+    final long[] live;
+    final long[] sinks;
+    final int reachableCount;
+    final int liveCount;
+    final int sinkCount;
+    final int componentCount;
+    final int largestComponent;
+    // Components with a cycle: more than one state, or one state with a transition to itself
+    final int cyclicComponents;
+    // degreeBuckets[b] counts states with 0 transitions (b = 0) or 2^(b-1) to 2^b - 1 transitions
+    final int[] degreeBuckets;
+    final long nanos;
+
+    GraphAnalysis(CompiledFSM fsm) {
+        long start = System.nanoTime();
+        this.fsm = fsm;
+        int n = fsm.stateCount();
+        int classes = fsm.classCount();
+        int words = (n + 63) >>> 6;
+        reachable = new long[words];
+        live = new long[words];
+        sinks = new long[words];
+
+        int[] classSize = new int[classes];
+        for (int a = 0; a < fsm.symbolCount(); a++) {
+            classSize[fsm.symbolClass(a)]++;
+        }
+        int[] buckets = new int[33];
+        int sinkTotal = 0;
+        for (int s = 0; s < n; s++) {
+            int degree = 0;
+            boolean sink = true;
+            for (int c = 0; c < classes; c++) {
+                int t = fsm.nextInClass(s, c);
+                if (t != CompiledFSM.NONE) {
+                    degree += classSize[c];
+                    sink &= t == s;
+                }
+            }
+            buckets[32 - Integer.numberOfLeadingZeros(degree)]++;
+            if (sink) {
+                setBit(sinks, s);
+                sinkTotal++;
+            }
+        }
+        int lastBucket = buckets.length;
+        while (lastBucket > 1 && buckets[lastBucket - 1] == 0) {
+            lastBucket--;
+        }
+        degreeBuckets = Arrays.copyOf(buckets, lastBucket);
+        sinkCount = sinkTotal;
+
+        // Iterative Tarjan: index and low link per state, the component stack, and the
+        // explicit call stack holding each active state and the next class to follow
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] component = new int[n];
+        Arrays.fill(index, -1);
+        int[] stack = new int[n];
+        int stackSize = 0;
+        long[] onStack = new long[words];
+        int[] callState = new int[n];
+        int[] callClass = new int[n];
+        boolean[] componentLive = new boolean[Math.max(1, n)];
+        int nextIndex = 0;
+        int components = 0;
+        int largest = 0;
+        int cyclic = 0;
+        int reachableTotal = 0;
+        int liveTotal = 0;
+
+        int initial = fsm.initialState;
+        for (int r = -1; r < n; r++) {
+            int root = r < 0 ? initial : r;
+            if (root == CompiledFSM.NONE || index[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            callState[0] = root;
+            callClass[0] = 0;
+            index[root] = low[root] = nextIndex++;
+            stack[stackSize++] = root;
+            setBit(onStack, root);
+            while (depth >= 0) {
+                int s = callState[depth];
+                if (callClass[depth] < classes) {
+                    int t = fsm.nextInClass(s, callClass[depth]++);
+                    if (t == CompiledFSM.NONE) {
+                        continue;
+                    }
+                    if (index[t] < 0) {
+                        depth++;
+                        callState[depth] = t;
+                        callClass[depth] = 0;
+                        index[t] = low[t] = nextIndex++;
+                        stack[stackSize++] = t;
+                        setBit(onStack, t);
+                    } else if (isSet(onStack, t)) {
+                        low[s] = Math.min(low[s], index[t]);
+                    }
+                    continue;
+                }
+
+                // All successors done: s closes a component if it is its root
+                if (low[s] == index[s]) {
+                    int id = components++;
+                    int size = 0;
+                    boolean isLive = false;
+                    boolean cycle = false;
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        clearBit(onStack, member);
+                        component[member] = id;
+                        size++;
+                        isLive |= fsm.isFinal(member);
+                    } while (member != s);
+                    // Every successor is in this component or in one completed earlier
+                    for (int i = stackSize; i < stackSize + size; i++) {
+                        int m = stack[i];
+                        for (int c = 0; c < classes; c++) {
+                            int t = fsm.nextInClass(m, c);
+                            if (t == CompiledFSM.NONE) {
+                                continue;
+                            }
+                            if (component[t] == id) {
+                                cycle |= size > 1 || t == m;
+                            } else {
+                                isLive |= componentLive[component[t]];
+                            }
+                        }
+                    }
+                    componentLive[id] = isLive;
+                    largest = Math.max(largest, size);
+                    if (cycle) {
+                        cyclic++;
+                    }
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callState[depth];
+                    low[parent] = Math.min(low[parent], low[s]);
+                }
+            }
+            if (r < 0) {
+                // Everything indexed so far was found from the initial state
+                for (int s = 0; s < n; s++) {
+                    if (index[s] >= 0) {
+                        setBit(reachable, s);
+                        reachableTotal++;
+                    }
+                }
+            }
+        }
+        for (int s = 0; s < n; s++) {
+            if (componentLive[component[s]]) {
+                setBit(live, s);
+                liveTotal++;
+            }
+        }
+        reachableCount = reachableTotal;
+        liveCount = liveTotal;
+        componentCount = components;
+        largestComponent = largest;
+        cyclicComponents = cyclic;
+        nanos = System.nanoTime() - start;
+    }
+
+    boolean isReachable(int state) {
+        return isSet(reachable, state);
+    }
+
+    boolean isDead(int state) {
+        return !isSet(live, state);
+    }
+
+    boolean isSink(int state) {
+        return isSet(sinks, state);
+    }
+
+    /**
+     * Same as fsm.run from the initial state, except that it stops as soon as
+     * the run enters a dead state: the result then holds that state and the
+     * position after the symbol that entered it (0 when the initial state is
+     * dead). The input is run in chunks with fsm.run's fast paths, and only a
+     * chunk that ends in a dead state is replayed symbol by symbol.
+     */
+    long runUntilDead(CharSequence input) {
+        int state = fsm.initialState;
+        int length = input.length();
+        if (isDead(state)) {
+            return state & 0xFFFFFFFFL;
+        }
+        for (int from = 0; from < length; from += DEAD_CHECK_CHUNK) {
+            int to = Math.min(length, from + DEAD_CHECK_CHUNK);
+            long result = fsm.run(state, input, from, to, null);
+            if (isDead(CompiledFSM.stateOf(result))) {
+                return deadEntry(state, input, from);
+            }
+            if (CompiledFSM.stoppedAt(result) < to) {
+                return result;
+            }
+            state = CompiledFSM.stateOf(result);
+        }
+        return ((long) length << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    // Replays from a live state until the step that enters a dead state, which must come
+    private long deadEntry(int state, CharSequence input, int from) {
+        int i = from;
+        while (!isDead(state)) {
+            state = fsm.nextInClass(state, fsm.charClass(input.charAt(i++)));
+        }
+        return ((long) i << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    private static void setBit(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clearBit(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    private static boolean isSet(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+}
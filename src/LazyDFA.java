@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Executes a nondeterministic definition (several targets per symbol and
+ * EPSILON moves) through a DFA built on demand. Each DFA state is the
+ * epsilon-closed set of NFA states active at some point; a state and its
+ * transitions are only created when a run first needs them, so typical inputs
+ * touch a small part of the full subset construction.
+ *
+ * The cache of DFA states is bounded by an estimate in bytes. When it is full
+ * it is emptied and rebuilt from the current position. A run that empties the
+ * cache more than MAX_FLUSHES_PER_RUN times finishes by simulating the NFA
+ * directly, which is slower per symbol but needs no memory per state.
+ *
+ * Not thread safe: runs mutate the cache, so callers share one instance only
+ * under the definition lock.
+ */
+final class LazyDFA {
+    static final long DEFAULT_CACHE_BYTES = 32L << 20;
+    private static final int MAX_FLUSHES_PER_RUN = 4;
+    // Table entry of a transition not computed yet
+    private static final int UNKNOWN = -2;
+    // Bytes per cached state besides its member array and table row: map entry, key and list slot
+    private static final int STATE_OVERHEAD = 96;
+
+    final char[] symbolChars;
+    private final int symbolCount;
+    private final int[] symbolIds;
+    private final String[] stateNames;
+    // [state * symbolCount + symbol] is the sorted array of targets, empty when there are none
+    private final int[][] targets;
+    private final int[][] epsilon;
+    private final boolean[] finals;
+    // Epsilon closure of the initial state, or null when there is no initial state
+    private final int[] initialSet;
+    private final long maxCacheBytes;
+
+    // The cache: DFA state id -> member set, member set -> id, and the transition table by id
+    private final Map<StateSet, Integer> ids = new HashMap<>();
+    private final List<int[]> sets = new ArrayList<>();
+    private int[] table = new int[0];
+    private long cacheBytes;
+
+    // Scratch space for step: states already added carry the current epoch
+    private final int[] marks;
+    private final int[] members;
+    private int epoch;
+
+    long steps;
+    long misses;
+    long flushes;
+    long simulatedSteps;
+
+    private LazyDFA(char[] symbolChars, String[] stateNames, int[][] targets, int[][] epsilon,
+                    boolean[] finals, int initial, long maxCacheBytes) {
+        this.symbolChars = symbolChars;
+        this.symbolCount = symbolChars.length;
+        this.symbolIds = new int[symbolChars.length == 0 ? 0 : symbolChars[symbolChars.length - 1] + 1];
+        Arrays.fill(symbolIds, CompiledFSM.NONE);
+        for (int i = 0; i < symbolChars.length; i++) {
+            symbolIds[symbolChars[i]] = i;
+        }
+        this.stateNames = stateNames;
+        this.targets = targets;
+        this.epsilon = epsilon;
+        this.finals = finals;
+        this.maxCacheBytes = maxCacheBytes;
+        this.marks = new int[stateNames.length];
+        this.members = new int[stateNames.length];
+        this.initialSet = initial == CompiledFSM.NONE ? null : closure(new int[] {initial});
+    }
+
+    /**
+     * @param extraTransitions targets added with TRANSITIONS -add, besides the one in transitions
+     * @param epsilonTransitions EPSILON moves by source state
+     */
+    static LazyDFA build(Set<Character> symbols, Set<String> states, String initialState, Set<String> finalStates,
+                         Map<String, Map<Character, String>> transitions,
+                         Map<String, Map<Character, Set<String>>> extraTransitions,
+                         Map<String, Set<String>> epsilonTransitions, long maxCacheBytes) {
+        TreeSet<String> allStates = new TreeSet<>(states);
+        if (initialState != null) {
+            allStates.add(initialState);
+        }
+        allStates.addAll(finalStates);
+        for (Map.Entry<String, Map<Character, String>> entry : transitions.entrySet()) {
+            allStates.add(entry.getKey());
+            allStates.addAll(entry.getValue().values());
+        }
+        for (Map.Entry<String, Map<Character, Set<String>>> entry : extraTransitions.entrySet()) {
+            allStates.add(entry.getKey());
+            entry.getValue().values().forEach(allStates::addAll);
+        }
+        for (Map.Entry<String, Set<String>> entry : epsilonTransitions.entrySet()) {
+            allStates.add(entry.getKey());
+            allStates.addAll(entry.getValue());
+        }
+        String[] stateNames = allStates.toArray(new String[0]);
+        Map<String, Integer> stateIds = new HashMap<>();
+        for (int i = 0; i < stateNames.length; i++) {
+            stateIds.put(stateNames[i], i);
+        }
+
+        char[] symbolChars = new char[symbols.size()];
+        int n = 0;
+        for (Character c : new TreeSet<>(symbols)) {
+            symbolChars[n++] = c;
+        }
+        int k = symbolChars.length;
+        Map<Character, Integer> symbolIds = new HashMap<>();
+        for (int i = 0; i < k; i++) {
+            symbolIds.put(symbolChars[i], i);
+        }
+
+        List<TreeSet<Integer>> moves = new ArrayList<>(stateNames.length * k);
+        for (int i = 0; i < stateNames.length * k; i++) {
+            moves.add(null);
+        }
+        for (Map.Entry<String, Map<Character, String>> entry : transitions.entrySet()) {
+            int from = stateIds.get(entry.getKey());
+            for (Map.Entry<Character, String> t : entry.getValue().entrySet()) {
+                addMove(moves, from, k, symbolIds.get(t.getKey()), stateIds.get(t.getValue()));
+            }
+        }
+        for (Map.Entry<String, Map<Character, Set<String>>> entry : extraTransitions.entrySet()) {
+            int from = stateIds.get(entry.getKey());
+            for (Map.Entry<Character, Set<String>> t : entry.getValue().entrySet()) {
+                for (String to : t.getValue()) {
+                    addMove(moves, from, k, symbolIds.get(t.getKey()), stateIds.get(to));
+                }
+            }
+        }
+        int[][] targets = new int[moves.size()][];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = toArray(moves.get(i));
+        }
+
+        int[][] epsilon = new int[stateNames.length][];
+        for (int s = 0; s < stateNames.length; s++) {
+            TreeSet<Integer> to = new TreeSet<>();
+            for (String name : epsilonTransitions.getOrDefault(stateNames[s], Collections.emptySet())) {
+                to.add(stateIds.get(name));
+            }
+            epsilon[s] = toArray(to);
+        }
+
+        boolean[] finals = new boolean[stateNames.length];
+        for (String state : finalStates) {
+            finals[stateIds.get(state)] = true;
+        }
+        int initial = initialState == null ? CompiledFSM.NONE : stateIds.get(initialState);
+        return new LazyDFA(symbolChars, stateNames, targets, epsilon, finals, initial, maxCacheBytes);
+    }
+
+    // Symbols that are no longer declared are skipped, as in CompiledFSM.build
+    private static void addMove(List<TreeSet<Integer>> moves, int from, int k, Integer symbol, int to) {
+        if (symbol == null) {
+            return;
+        }
+        int i = from * k + symbol;
+        if (moves.get(i) == null) {
+            moves.set(i, new TreeSet<>());
+        }
+        moves.get(i).add(to);
+    }
+
+    private static int[] toArray(Set<Integer> set) {
+        if (set == null) {
+            return new int[0];
+        }
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (int value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    boolean hasInitialState() {
+        return initialSet != null;
+    }
+
+    int symbolId(char c) {
+        return c < symbolIds.length ? symbolIds[c] : CompiledFSM.NONE;
+    }
+
+    /**
+     * Where a run stopped and the NFA states active there. stoppedAt equals the
+     * input length when the whole input was consumed; otherwise the symbol at
+     * stoppedAt is undeclared or no active state has a move on it.
+     */
+    static final class Run {
+        final int stoppedAt;
+        final int[] active;
+        final boolean accepted;
+
+        Run(int stoppedAt, int[] active, boolean accepted) {
+            this.stoppedAt = stoppedAt;
+            this.active = active;
+            this.accepted = accepted;
+        }
+    }
+
+    Run run(CharSequence input) {
+        int length = input.length();
+        int state = intern(initialSet);
+        long startFlushes = flushes;
+        for (int i = 0; i < length; i++) {
+            int a = symbolId(Character.toUpperCase(input.charAt(i)));
+            if (a == CompiledFSM.NONE) {
+                return stopped(i, sets.get(state));
+            }
+            int next = next(state, a);
+            if (next == CompiledFSM.NONE) {
+                return stopped(i, sets.get(state));
+            }
+            state = next;
+            if (flushes - startFlushes > MAX_FLUSHES_PER_RUN) {
+                return simulate(sets.get(state), input, i + 1);
+            }
+        }
+        return stopped(length, sets.get(state));
+    }
+
+    // The rest of a run on the NFA itself, for inputs that keep overflowing the cache
+    private Run simulate(int[] active, CharSequence input, int from) {
+        int length = input.length();
+        for (int i = from; i < length; i++) {
+            int a = symbolId(Character.toUpperCase(input.charAt(i)));
+            int[] next = a == CompiledFSM.NONE ? new int[0] : step(active, a);
+            simulatedSteps++;
+            if (next.length == 0) {
+                return stopped(i, active);
+            }
+            active = next;
+        }
+        return stopped(length, active);
+    }
+
+    private Run stopped(int stoppedAt, int[] active) {
+        steps += stoppedAt;
+        return new Run(stoppedAt, active, isAccepting(active));
+    }
+
+    private boolean isAccepting(int[] active) {
+        for (int s : active) {
+            if (finals[s]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** ACCEPTED, REJECTED or FAILED, like CompiledFSM.classify. */
+    int classify(CharSequence input) {
+        Run run = run(input);
+        if (run.stoppedAt < input.length()) {
+            return CompiledFSM.FAILED;
+        }
+        return run.accepted ? CompiledFSM.ACCEPTED : CompiledFSM.REJECTED;
+    }
+
+    /** Writes the set of active states before each symbol and after the last one, separated by spaces. */
+    void writePath(CharSequence input, Writer out) throws IOException {
+        int state = intern(initialSet);
+        int[] active = sets.get(state);
+        writeSet(active, out);
+        for (int i = 0; i < input.length(); i++) {
+            int a = symbolId(Character.toUpperCase(input.charAt(i)));
+            if (a == CompiledFSM.NONE) {
+                return;
+            }
+            // Paths are for inspection, so every step goes through the cache and flushes are fine
+            state = next(intern(active), a);
+            if (state == CompiledFSM.NONE) {
+                return;
+            }
+            active = sets.get(state);
+            out.write(' ');
+            writeSet(active, out);
+        }
+    }
+
+    private void writeSet(int[] active, Writer out) throws IOException {
+        out.write('{');
+        for (int i = 0; i < active.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(stateNames[active[i]]);
+        }
+        out.write('}');
+    }
+
+    /** State names of a set of NFA states, as printed by EXECUTE. */
+    String names(int[] active) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < active.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(stateNames[active[i]]);
+        }
+        return sb.append(']').toString();
+    }
+
+    // DFA state reached from state on symbol a, created on a miss; NONE when no active state moves on a
+    private int next(int state, int a) {
+        int i = state * symbolCount + a;
+        int target = table[i];
+        if (target != UNKNOWN) {
+            return target;
+        }
+        misses++;
+        int[] moved = step(sets.get(state), a);
+        if (moved.length == 0) {
+            table[i] = CompiledFSM.NONE;
+            return CompiledFSM.NONE;
+        }
+        long before = flushes;
+        target = intern(moved);
+        // After a flush the source state is gone, so there is no row to record the target in
+        if (flushes == before) {
+            table[i] = target;
+        }
+        return target;
+    }
+
+    // Id of the DFA state for a closed, sorted member set, adding it and flushing the cache if needed
+    private int intern(int[] set) {
+        StateSet key = new StateSet(set);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        long cost = STATE_OVERHEAD + 4L * set.length + 4L * symbolCount;
+        if (!sets.isEmpty() && cacheBytes + cost > maxCacheBytes) {
+            flush();
+        }
+        int newId = sets.size();
+        sets.add(set);
+        ids.put(key, newId);
+        int rows = table.length / Math.max(symbolCount, 1);
+        if (newId >= rows) {
+            int oldLength = table.length;
+            table = Arrays.copyOf(table, Math.max(16, 2 * rows) * symbolCount);
+            Arrays.fill(table, oldLength, table.length, UNKNOWN);
+        }
+        cacheBytes += cost;
+        return newId;
+    }
+
+    private void flush() {
+        ids.clear();
+        sets.clear();
+        Arrays.fill(table, UNKNOWN);
+        cacheBytes = 0;
+        flushes++;
+    }
+
+    // Epsilon closure of the targets of all states in active on symbol a, sorted
+    private int[] step(int[] active, int a) {
+        int count = 0;
+        epoch++;
+        for (int s : active) {
+            for (int t : targets[s * symbolCount + a]) {
+                if (marks[t] != epoch) {
+                    marks[t] = epoch;
+                    members[count++] = t;
+                }
+            }
+        }
+        return closeMarked(count);
+    }
+
+    private int[] closure(int[] seed) {
+        epoch++;
+        for (int i = 0; i < seed.length; i++) {
+            marks[seed[i]] = epoch;
+            members[i] = seed[i];
+        }
+        return closeMarked(seed.length);
+    }
+
+    // Adds the EPSILON moves of members[0..count) until nothing changes; the marks hold the current epoch
+    private int[] closeMarked(int count) {
+        for (int i = 0; i < count; i++) {
+            for (int t : epsilon[members[i]]) {
+                if (marks[t] != epoch) {
+                    marks[t] = epoch;
+                    members[count++] = t;
+                }
+            }
+        }
+        int[] set = Arrays.copyOf(members, count);
+        Arrays.sort(set);
+        return set;
+    }
+
+    int cachedStates() {
+        return sets.size();
+    }
+
+    long cacheBytes() {
+        return cacheBytes;
+    }
+
+    long maxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    // Member set used as a map key, compared by content
+    private static final class StateSet {
+        private final int[] members;
+        private final int hash;
+
+        StateSet(int[] members) {
+            this.members = members;
+            this.hash = Arrays.hashCode(members);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && Arrays.equals(members, ((StateSet) o).members);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
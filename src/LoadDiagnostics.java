@@ -0,0 +1,36 @@
+import java.util.*;
+
+/**
+ * Warnings and errors collected by LOAD -bulk. Messages are counted per kind
+ * and only the first few of each kind are kept, so a file with millions of
+ * problems does not flood the console.
+ */
+final class LoadDiagnostics {
+    private static final int EXAMPLES_PER_KIND = 5;
+
+    private final Map<String, Integer> counts = new LinkedHashMap<>();
+    private final Map<String, List<String>> examples = new HashMap<>();
+    private int total;
+
+    void report(String kind, int lineNumber, String message) {
+        total++;
+        counts.merge(kind, 1, Integer::sum);
+        List<String> kept = examples.computeIfAbsent(kind, k -> new ArrayList<>());
+        if (kept.size() < EXAMPLES_PER_KIND) {
+            kept.add("line " + lineNumber + ": " + message);
+        }
+    }
+
+    int total() {
+        return total;
+    }
+
+    void print() {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            System.out.println("  " + entry.getValue() + " x " + entry.getKey());
+            for (String example : examples.get(entry.getKey())) {
+                System.out.println("    " + example);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+import javax.tools.*;
+
+/**
+ * Generates a matcher class specialized for one CompiledFSM: its transition
+ * tables are static final arrays indexed by symbol class, the class count a
+ * constant, EXECUTE's upper-casing folded into a raw character to class
+ * array, and small machines also get a table advancing two symbols per
+ * lookup. The source is compiled in memory with the JDK's compiler and loaded
+ * as a hidden class.
+ *
+ * Only machines of up to MAX_TABLE_ENTRIES table entries get a matcher, which
+ * keeps the array initializers within the 64 KB a class initializer may hold.
+ * The class bytes can be saved next to a compiled file, headed by a
+ * fingerprint of the machine so a stale matcher is ignored:
+ *
+ * <pre>
+ * int    magic "FSMM", int version
+ * long   fingerprint
+ * int    class length, byte class[class length]
+ * </pre>
+ */
+final class MatcherGenerator {
+    static final int MAX_TABLE_ENTRIES = 4096;
+    // Largest two-symbol table generated, in entries
+    private static final int MAX_PAIR_ENTRIES = 4096;
+    static final String FILE_SUFFIX = ".matcher";
+    private static final int MAGIC = 0x46534D4D;
+    private static final int VERSION = 1;
+    private static final String CLASS_NAME = "GeneratedMatcher";
+
+    private MatcherGenerator() {
+    }
+
+    static boolean canGenerate(CompiledFSM fsm) {
+        return (long) fsm.stateCount() * fsm.classCount() <= MAX_TABLE_ENTRIES && fsm.initialState != CompiledFSM.NONE;
+    }
+
+    /** Class bytes of a matcher for fsm; fails when no compiler is available. */
+    static byte[] generate(CompiledFSM fsm) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("no Java compiler available, a JDK is needed");
+        }
+        String source = source(fsm);
+        JavaFileObject sourceFile = new SimpleJavaFileObject(uri(CLASS_NAME + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+             JavaFileManager files = new ForwardingJavaFileManager<>(standard) {
+                 @Override
+                 public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                            JavaFileObject.Kind kind, FileObject sibling) {
+                     return new SimpleJavaFileObject(uri(className.replace('.', '/') + ".class"), kind) {
+                         @Override
+                         public OutputStream openOutputStream() {
+                             return classBytes;
+                         }
+                     };
+                 }
+             }) {
+            List<String> options = List.of("-proc:none", "-g:none", "-classpath", classPath());
+            if (!compiler.getTask(null, files, diagnostics, options, null, List.of(sourceFile)).call()) {
+                String message = diagnostics.getDiagnostics().isEmpty() ? "compilation failed"
+                        : diagnostics.getDiagnostics().get(0).getMessage(Locale.ROOT);
+                throw new IOException(message);
+            }
+        }
+        return classBytes.toByteArray();
+    }
+
+    /*
+     * static final arrays of the generated class: SYMBOL maps a raw input
+     * character to its symbol class with EXECUTE's upper-casing folded in, NEXT
+     * is the transition table and PAIR the table for two symbols at once,
+     * indexed with the constant class count so the index arithmetic folds.
+     */
+    private static String source(CompiledFSM fsm) {
+        int k = fsm.classCount();
+        int n = fsm.stateCount();
+        int[] symbol = rawSymbols(fsm);
+        boolean pairs = (long) n * k * k <= MAX_PAIR_ENTRIES;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("public final class ").append(CLASS_NAME).append(" implements FSMMatcher {\n");
+        array(sb, "SYMBOL", symbol.length, i -> symbol[i]);
+        array(sb, "NEXT", n * k, i -> fsm.nextInClass(i / k, i % k));
+        if (pairs) {
+            array(sb, "PAIR", n * k * k, i -> {
+                int mid = fsm.nextInClass(i / (k * k), i / k % k);
+                return mid == CompiledFSM.NONE ? CompiledFSM.NONE : fsm.nextInClass(mid, i % k);
+            });
+        }
+        sb.append("\n");
+        sb.append("    public long run(int state, CharSequence input, int from, int to) {\n");
+        sb.append("        int i = from;\n");
+        if (pairs) {
+            // A pair that stops is left to the single step loop, which finds the exact position
+            sb.append("        for (; i + 1 < to; i += 2) {\n");
+            sb.append("            char c = input.charAt(i);\n");
+            sb.append("            char d = input.charAt(i + 1);\n");
+            sb.append("            if (c >= ").append(symbol.length).append(" || d >= ").append(symbol.length)
+                    .append(") break;\n");
+            sb.append("            int a = SYMBOL[c];\n");
+            sb.append("            int b = SYMBOL[d];\n");
+            sb.append("            if ((a | b) < 0) break;\n");
+            sb.append("            int next = PAIR[state * ").append(k * k).append(" + a * ").append(k).append(" + b];\n");
+            sb.append("            if (next < 0) break;\n");
+            sb.append("            state = next;\n");
+            sb.append("        }\n");
+        }
+        sb.append("        for (; i < to; i++) {\n");
+        sb.append("            char c = input.charAt(i);\n");
+        sb.append("            if (c >= ").append(symbol.length).append(") break;\n");
+        sb.append("            int a = SYMBOL[c];\n");
+        sb.append("            if (a < 0) break;\n");
+        sb.append("            int next = NEXT[state * ").append(k).append(" + a];\n");
+        sb.append("            if (next < 0) break;\n");
+        sb.append("            state = next;\n");
+        sb.append("        }\n");
+        sb.append("        return ((long) i << 32) | (state & 0xFFFFFFFFL);\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // symbol[c] is the class of c for every c up to the largest one whose upper case is declared
+    private static int[] rawSymbols(CompiledFSM fsm) {
+        int length = 0;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (fsm.charClass((char) c) != CompiledFSM.NONE) {
+                length = c + 1;
+            }
+        }
+        int[] symbol = new int[length];
+        for (int c = 0; c < length; c++) {
+            symbol[c] = fsm.charClass((char) c);
+        }
+        return symbol;
+    }
+
+    private static void array(StringBuilder sb, String name, int length, IntUnaryOperator value) {
+        sb.append("    private static final int[] ").append(name).append(" = {");
+        for (int i = 0; i < length; i++) {
+            sb.append(i % 32 == 0 ? "\n        " : " ").append(value.applyAsInt(i)).append(',');
+        }
+        sb.append("\n    };\n");
+    }
+
+    private static URI uri(String name) {
+        try {
+            return new URI("string:///" + name);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // Where FSMMatcher was loaded from, so the generated class can implement it
+    private static String classPath() {
+        try {
+            return Paths.get(FSMMatcher.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException | NullPointerException e) {
+            return System.getProperty("java.class.path");
+        }
+    }
+
+    /** Loads generated class bytes as a hidden class and returns an instance. */
+    static FSMMatcher define(byte[] classBytes) throws IOException {
+        try {
+            Class<?> matcherClass = MethodHandles.lookup().defineHiddenClass(classBytes, true).lookupClass();
+            return (FSMMatcher) matcherClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            throw new IOException("invalid matcher class: " + e);
+        }
+    }
+
+    static Path matcherFile(Path compiledFile) {
+        return compiledFile.resolveSibling(compiledFile.getFileName() + FILE_SUFFIX);
+    }
+
+    static void save(Path compiledFile, CompiledFSM fsm, byte[] classBytes) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(matcherFile(compiledFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fsm.fingerprint());
+            out.writeInt(classBytes.length);
+            out.write(classBytes);
+        }
+    }
+
+    /**
+     * Attaches the matcher saved next to compiledFile, if there is one and it
+     * was generated for this machine. Returns whether a matcher was attached.
+     */
+    static boolean attachSaved(CompiledFSM fsm, Path compiledFile) {
+        Path file = matcherFile(compiledFile);
+        if (!Files.isRegularFile(file) || !canGenerate(fsm)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fsm.fingerprint()) {
+                return false;
+            }
+            // The header is 20 bytes; a length that does not fit the rest of the file is damage
+            int length = in.readInt();
+            if (length <= 0 || length > Files.size(file) - 20) {
+                return false;
+            }
+            byte[] classBytes = new byte[length];
+            in.readFully(classBytes);
+            fsm.setMatcher(define(classBytes));
+            return true;
+        } catch (IOException e) {
+            // A damaged matcher file only costs the speedup
+            return false;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.util.*;
+
+/**
+ * Minimizes a CompiledFSM: unreachable states and states from which no final
+ * state can be reached are removed, then equivalent states are merged with
+ * Hopcroft's O(n k log n) partition refinement. Each merged group keeps the
+ * name of its smallest member, or of the initial state when it is in the group.
+ */
+final class Minimizer {
+    Set<String> states = new HashSet<>();
+    String initialState;
+    Set<String> finalStates = new HashSet<>();
+    Map<String, Map<Character, String>> transitions = new HashMap<>();
+
+    private final CompiledFSM fsm;
+    private final int symbolCount;
+
+    // Partition of the live states plus one sink state used to complete the machine
+    private int[] elems;
+    private int[] loc;
+    private int[] blockOf;
+    private int[] blockStart;
+    private int[] blockEnd;
+    private int[] marked;
+    private int blockCount;
+
+    Minimizer(CompiledFSM fsm) {
+        this.fsm = fsm;
+        this.symbolCount = fsm.symbolCount();
+    }
+
+    void minimize() {
+        int n = fsm.stateCount();
+        if (fsm.initialState == CompiledFSM.NONE) {
+            return;
+        }
+
+        boolean[] reachable = reachable(n);
+        boolean[] coReachable = coReachable(n);
+
+        // Dense ids for live states; the sink gets id m
+        int[] liveId = new int[n];
+        int m = 0;
+        for (int s = 0; s < n; s++) {
+            liveId[s] = reachable[s] && coReachable[s] ? m++ : CompiledFSM.NONE;
+        }
+        initialState = fsm.stateName(fsm.initialState);
+        if (liveId[fsm.initialState] == CompiledFSM.NONE) {
+            // Nothing is accepted: only the initial state is left
+            states.add(initialState);
+            return;
+        }
+        int[] liveState = new int[m];
+        for (int s = 0; s < n; s++) {
+            if (liveId[s] != CompiledFSM.NONE) {
+                liveState[liveId[s]] = s;
+            }
+        }
+
+        int sink = m;
+        int size = m + 1;
+        int[] delta = new int[size * symbolCount];
+        for (int q = 0; q < m; q++) {
+            for (int a = 0; a < symbolCount; a++) {
+                int t = fsm.next(liveState[q], a);
+                delta[q * symbolCount + a] = t == CompiledFSM.NONE || liveId[t] == CompiledFSM.NONE ? sink : liveId[t];
+            }
+        }
+        for (int a = 0; a < symbolCount; a++) {
+            delta[sink * symbolCount + a] = sink;
+        }
+
+        refine(size, delta, liveState, m);
+
+        // One representative per block, preferring the initial state and then the smallest name
+        int[] rep = new int[blockCount];
+        Arrays.fill(rep, CompiledFSM.NONE);
+        for (int q = 0; q < m; q++) {
+            int b = blockOf[q];
+            if (rep[b] == CompiledFSM.NONE || liveState[q] == fsm.initialState
+                    || (liveState[rep[b]] != fsm.initialState && liveState[q] < liveState[rep[b]])) {
+                rep[b] = q;
+            }
+        }
+        for (int b = 0; b < blockCount; b++) {
+            int r = rep[b];
+            if (r == CompiledFSM.NONE) {
+                continue;
+            }
+            String name = fsm.stateName(liveState[r]);
+            states.add(name);
+            if (fsm.isFinal(liveState[r])) {
+                finalStates.add(name);
+            }
+            for (int a = 0; a < symbolCount; a++) {
+                int t = delta[r * symbolCount + a];
+                if (t == sink) {
+                    continue;
+                }
+                transitions.computeIfAbsent(name, k -> new HashMap<>())
+                        .put(fsm.symbolChars[a], fsm.stateName(liveState[rep[blockOf[t]]]));
+            }
+        }
+    }
+
+    private boolean[] reachable(int n) {
+        boolean[] seen = new boolean[n];
+        int[] stack = new int[n];
+        int top = 0;
+        seen[fsm.initialState] = true;
+        stack[top++] = fsm.initialState;
+        while (top > 0) {
+            int s = stack[--top];
+            for (int a = 0; a < symbolCount; a++) {
+                int t = fsm.next(s, a);
+                if (t != CompiledFSM.NONE && !seen[t]) {
+                    seen[t] = true;
+                    stack[top++] = t;
+                }
+            }
+        }
+        return seen;
+    }
+
+    private boolean[] coReachable(int n) {
+        // Reverse edges in CSR form
+        int[] count = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            for (int a = 0; a < symbolCount; a++) {
+                int t = fsm.next(s, a);
+                if (t != CompiledFSM.NONE) {
+                    count[t + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            count[i + 1] += count[i];
+        }
+        int[] pred = new int[count[n]];
+        int[] fill = Arrays.copyOf(count, n);
+        for (int s = 0; s < n; s++) {
+            for (int a = 0; a < symbolCount; a++) {
+                int t = fsm.next(s, a);
+                if (t != CompiledFSM.NONE) {
+                    pred[fill[t]++] = s;
+                }
+            }
+        }
+
+        boolean[] seen = new boolean[n];
+        int[] stack = new int[n];
+        int top = 0;
+        for (int s = 0; s < n; s++) {
+            if (fsm.isFinal(s)) {
+                seen[s] = true;
+                stack[top++] = s;
+            }
+        }
+        while (top > 0) {
+            int t = stack[--top];
+            for (int i = count[t]; i < count[t + 1]; i++) {
+                int s = pred[i];
+                if (!seen[s]) {
+                    seen[s] = true;
+                    stack[top++] = s;
+                }
+            }
+        }
+        return seen;
+    }
+
+    private void refine(int size, int[] delta, int[] liveState, int m) {
+        // Inverse transitions per symbol in CSR form: preds of (a, t)
+        int k = symbolCount;
+        int[] invStart = new int[k * size + 1];
+        for (int q = 0; q < size; q++) {
+            for (int a = 0; a < k; a++) {
+                invStart[a * size + delta[q * k + a] + 1]++;
+            }
+        }
+        for (int i = 0; i < k * size; i++) {
+            invStart[i + 1] += invStart[i];
+        }
+        int[] inv = new int[size * k];
+        int[] fill = Arrays.copyOf(invStart, k * size);
+        for (int q = 0; q < size; q++) {
+            for (int a = 0; a < k; a++) {
+                inv[fill[a * size + delta[q * k + a]]++] = q;
+            }
+        }
+
+        elems = new int[size];
+        loc = new int[size];
+        blockOf = new int[size];
+        blockStart = new int[size];
+        blockEnd = new int[size];
+        marked = new int[size];
+
+        // Initial partition: final states first, then the rest (including the sink)
+        int pos = 0;
+        for (int q = 0; q < m; q++) {
+            if (fsm.isFinal(liveState[q])) {
+                place(q, pos++, 0);
+            }
+        }
+        int finalCount = pos;
+        int rest = finalCount == 0 ? 0 : 1;
+        for (int q = 0; q < size; q++) {
+            if (q == m || !fsm.isFinal(liveState[q])) {
+                place(q, pos++, rest);
+            }
+        }
+        blockCount = rest + 1;
+        blockStart[0] = 0;
+        blockEnd[0] = finalCount == 0 ? size : finalCount;
+        if (rest == 1) {
+            blockStart[1] = finalCount;
+            blockEnd[1] = size;
+        }
+
+        boolean[] inWork = new boolean[size * Math.max(k, 1)];
+        int[] work = new int[size * Math.max(k, 1)];
+        int workTop = 0;
+        int first = blockCount == 2 && blockEnd[1] - blockStart[1] < blockEnd[0] - blockStart[0] ? 1 : 0;
+        for (int a = 0; a < k; a++) {
+            work[workTop++] = first * k + a;
+            inWork[first * k + a] = true;
+        }
+
+        int[] splitter = new int[size];
+        int[] touched = new int[size];
+        while (workTop > 0) {
+            int entry = work[--workTop];
+            inWork[entry] = false;
+            int s = entry / k;
+            int a = entry % k;
+
+            int splitterSize = 0;
+            for (int i = blockStart[s]; i < blockEnd[s]; i++) {
+                splitter[splitterSize++] = elems[i];
+            }
+            int touchedCount = 0;
+            for (int i = 0; i < splitterSize; i++) {
+                int t = splitter[i];
+                for (int j = invStart[a * size + t]; j < invStart[a * size + t + 1]; j++) {
+                    int p = inv[j];
+                    int b = blockOf[p];
+                    int boundary = blockStart[b] + marked[b];
+                    if (loc[p] < boundary) {
+                        continue;
+                    }
+                    if (marked[b] == 0) {
+                        touched[touchedCount++] = b;
+                    }
+                    int other = elems[boundary];
+                    place(other, loc[p], b);
+                    place(p, boundary, b);
+                    marked[b]++;
+                }
+            }
+
+            for (int i = 0; i < touchedCount; i++) {
+                int b = touched[i];
+                int markedCount = marked[b];
+                marked[b] = 0;
+                if (markedCount == blockEnd[b] - blockStart[b]) {
+                    continue;
+                }
+                // The marked prefix becomes a new block
+                int nb = blockCount++;
+                blockStart[nb] = blockStart[b];
+                blockEnd[nb] = blockStart[b] + markedCount;
+                blockStart[b] = blockEnd[nb];
+                for (int j = blockStart[nb]; j < blockEnd[nb]; j++) {
+                    blockOf[elems[j]] = nb;
+                }
+                int smaller = markedCount <= blockEnd[b] - blockStart[b] ? nb : b;
+                for (int c = 0; c < k; c++) {
+                    if (inWork[b * k + c]) {
+                        work[workTop++] = nb * k + c;
+                        inWork[nb * k + c] = true;
+                    } else {
+                        work[workTop++] = smaller * k + c;
+                        inWork[smaller * k + c] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void place(int q, int position, int block) {
+        elems[position] = q;
+        loc[q] = position;
+        blockOf[q] = block;
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.*;
+
+/**
+ * Runs several machines over the same input in one pass. The machines advance
+ * together as one product machine whose states, tuples of component states,
+ * are created the first time a run reaches them; after warming up every input
+ * symbol costs one table lookup however many machines there are. A component
+ * that stops (undeclared symbol or missing transition) becomes NONE in the
+ * tuple, and its stop position and state are recorded on the transition that
+ * stopped it.
+ *
+ * At most MAX_TUPLES product states are created. A run that needs more goes on
+ * machine by machine from where it is. Not thread safe, like LazyDFA.
+ */
+final class MultiExecutor {
+    private static final int MAX_TUPLES = 1 << 16;
+    private static final int UNKNOWN = -2;
+
+    private final CompiledFSM[] machines;
+    private final int symbolCount;
+    private final int[] symbolIds;
+    // componentSymbol[m][k] is machine m's id for product symbol k, or NONE when m does not declare it
+    private final int[][] componentSymbol;
+
+    private final Map<Tuple, Integer> ids = new HashMap<>();
+    private final List<int[]> tuples = new ArrayList<>();
+    private int[] table = new int[0];
+    // Set for table entries on which some component stops
+    private final BitSet stops = new BitSet();
+
+    long fallbacks;
+
+    MultiExecutor(CompiledFSM[] machines) {
+        this.machines = machines;
+        TreeSet<Character> symbols = new TreeSet<>();
+        for (CompiledFSM fsm : machines) {
+            for (char c : fsm.symbolChars) {
+                symbols.add(c);
+            }
+        }
+        this.symbolCount = symbols.size();
+        this.symbolIds = new int[symbols.isEmpty() ? 0 : symbols.last() + 1];
+        Arrays.fill(symbolIds, CompiledFSM.NONE);
+        this.componentSymbol = new int[machines.length][symbolCount];
+        int k = 0;
+        for (char c : symbols) {
+            symbolIds[c] = k;
+            for (int m = 0; m < machines.length; m++) {
+                componentSymbol[m][k] = machines[m].symbolId(c);
+            }
+            k++;
+        }
+    }
+
+    /** One result per machine, packed like CompiledFSM.run. Every machine must have an initial state. */
+    long[] run(CharSequence input) {
+        int length = input.length();
+        long[] results = new long[machines.length];
+        boolean[] stopped = new boolean[machines.length];
+        int[] initial = new int[machines.length];
+        for (int m = 0; m < machines.length; m++) {
+            initial[m] = machines[m].initialState;
+        }
+
+        int tuple = intern(initial);
+        int running = machines.length;
+        int i = 0;
+        for (; i < length && running > 0; i++) {
+            char c = Character.toUpperCase(input.charAt(i));
+            int k = c < symbolIds.length ? symbolIds[c] : CompiledFSM.NONE;
+            if (k == CompiledFSM.NONE) {
+                break;
+            }
+            int index = tuple * symbolCount + k;
+            int next = table[index];
+            if (next == UNKNOWN) {
+                if (tuples.size() >= MAX_TUPLES) {
+                    fallbacks++;
+                    return finishSeparately(input, i, tuples.get(tuple), results, stopped);
+                }
+                next = advance(tuple, k);
+            }
+            if (stops.get(index)) {
+                int[] before = tuples.get(tuple);
+                int[] after = tuples.get(next);
+                for (int m = 0; m < machines.length; m++) {
+                    if (before[m] != CompiledFSM.NONE && after[m] == CompiledFSM.NONE) {
+                        results[m] = ((long) i << 32) | (before[m] & 0xFFFFFFFFL);
+                        stopped[m] = true;
+                        running--;
+                    }
+                }
+            }
+            tuple = next;
+        }
+        // Machines still running either consumed the input or stop at an undeclared symbol here
+        int[] states = tuples.get(tuple);
+        for (int m = 0; m < machines.length; m++) {
+            if (!stopped[m]) {
+                results[m] = ((long) i << 32) | (states[m] & 0xFFFFFFFFL);
+            }
+        }
+        return results;
+    }
+
+    // The rest of the input run machine by machine, once the product has grown too large
+    private long[] finishSeparately(CharSequence input, int from, int[] states, long[] results, boolean[] stopped) {
+        for (int m = 0; m < machines.length; m++) {
+            if (!stopped[m]) {
+                results[m] = machines[m].run(states[m], input, from, input.length(), null);
+            }
+        }
+        return results;
+    }
+
+    private int advance(int tuple, int k) {
+        int[] from = tuples.get(tuple);
+        int[] to = new int[from.length];
+        boolean someStop = false;
+        for (int m = 0; m < from.length; m++) {
+            int symbol = componentSymbol[m][k];
+            to[m] = from[m] == CompiledFSM.NONE || symbol == CompiledFSM.NONE
+                    ? CompiledFSM.NONE : machines[m].next(from[m], symbol);
+            someStop |= from[m] != CompiledFSM.NONE && to[m] == CompiledFSM.NONE;
+        }
+        int next = intern(to);
+        int index = tuple * symbolCount + k;
+        table[index] = next;
+        if (someStop) {
+            stops.set(index);
+        }
+        return next;
+    }
+
+    private int intern(int[] states) {
+        Tuple key = new Tuple(states);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        int newId = tuples.size();
+        tuples.add(states);
+        ids.put(key, newId);
+        if ((long) (newId + 1) * symbolCount > table.length) {
+            int oldLength = table.length;
+            table = Arrays.copyOf(table, Math.max(16, 2 * (newId + 1)) * symbolCount);
+            Arrays.fill(table, oldLength, table.length, UNKNOWN);
+        }
+        return newId;
+    }
+
+    /** True when this product is over exactly these machine instances, in this order. */
+    boolean runsOn(CompiledFSM[] machines) {
+        if (machines.length != this.machines.length) {
+            return false;
+        }
+        for (int m = 0; m < machines.length; m++) {
+            if (machines[m] != this.machines[m]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int productStates() {
+        return tuples.size();
+    }
+
+    // Component states used as a map key, compared by content
+    private static final class Tuple {
+        private final int[] states;
+        private final int hash;
+
+        Tuple(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tuple && Arrays.equals(states, ((Tuple) o).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs one very long input, the contents of a file, on several threads. The
+ * input is cut into chunks; every chunk but the first is run speculatively
+ * from each state the machine could be in at its start, which gives a map
+ * from start state to end state. Composing the maps in order yields the state
+ * after the whole input.
+ *
+ * Speculation starts from the states reachable from the initial state and
+ * runs them in lockstep, merging runs that reach the same state; most
+ * machines converge to one or two runs within a few symbols, which then
+ * continue on the normal (strided) run loop. A chunk that still has more than
+ * MAX_LIVE distinct runs after CONVERGE_WINDOW symbols, or that fails to halve
+ * its runs within CHECK_INTERVAL symbols while above MAX_LIVE, is not
+ * speculated any further and is run from its actual start state once that is
+ * known. A machine with more than MAX_SPECULATED reachable states is not
+ * speculated at all; the input is then run on one thread.
+ */
+final class ParallelExecutor {
+    private static final int MIN_CHUNK = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int CONVERGE_WINDOW = 4096;
+    private static final int MAX_LIVE = 16;
+    private static final int CHECK_INTERVAL = 64;
+    private static final int MAX_SPECULATED = 4096;
+
+    // Result as packed by CompiledFSM.run: stop position and state there
+    long result;
+    int length;
+    // Upper-cased input symbol at the stop position, when the run stopped early
+    char stopSymbol;
+    int chunks;
+    // States the speculative chunks started from, and chunks that had to be rerun
+    int speculatedStates;
+    int unresolvedChunks;
+    long elapsedNanos;
+
+    private final CompiledFSM fsm;
+    private final int threads;
+
+    ParallelExecutor(CompiledFSM fsm, int threads) {
+        this.fsm = fsm;
+        this.threads = threads;
+    }
+
+    /** Runs the file's bytes, taken as single-byte characters; trailing line breaks are ignored. */
+    void execute(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file is larger than 2 GB");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buffer.limit();
+            while (end > 0 && (buffer.get(end - 1) == '\n' || buffer.get(end - 1) == '\r')) {
+                end--;
+            }
+            length = end;
+            run(new ByteChars(buffer, end));
+            if (CompiledFSM.stoppedAt(result) < length) {
+                stopSymbol = Character.toUpperCase((char) (buffer.get(CompiledFSM.stoppedAt(result)) & 0xFF));
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void run(CharSequence input) throws IOException {
+        chunks = threads <= 1 ? 1 : (int) Math.max(1, Math.min((long) threads * CHUNKS_PER_THREAD,
+                length / MIN_CHUNK));
+        int[] starts = chunks == 1 ? null : reachableStates();
+        if (starts == null) {
+            chunks = 1;
+            result = fsm.run(fsm.initialState, input, 0, length, null);
+            return;
+        }
+        speculatedStates = starts.length;
+        int[][] maps = new int[chunks][];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, chunks).parallel()
+                    .forEach(c -> maps[c] = c == 0 ? null : speculate(starts, input, chunkStart(c), chunkStart(c + 1))))
+                    .get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        // Chunk 0 and every unresolved chunk run from the real state; a stop ends the whole run
+        int state = fsm.initialState;
+        for (int c = 0; c < chunks; c++) {
+            int[] map = maps[c];
+            if (map == null) {
+                if (c > 0) {
+                    unresolvedChunks++;
+                }
+                long chunkResult = fsm.run(state, input, chunkStart(c), chunkStart(c + 1), null);
+                if (CompiledFSM.stoppedAt(chunkResult) < chunkStart(c + 1)) {
+                    result = chunkResult;
+                    return;
+                }
+                state = CompiledFSM.stateOf(chunkResult);
+            } else {
+                // Every state the chunk can start in is reachable, so it is one of starts
+                int target = map[Arrays.binarySearch(starts, state)];
+                if (target == CompiledFSM.NONE) {
+                    // Rerun the chunk to find where exactly it stopped
+                    result = fsm.run(state, input, chunkStart(c), chunkStart(c + 1), null);
+                    return;
+                }
+                state = target;
+            }
+        }
+        result = ((long) length << 32) | (state & 0xFFFFFFFFL);
+    }
+
+    private int chunkStart(int c) {
+        return (int) ((long) length * c / chunks);
+    }
+
+    // The states reachable from the initial state in ascending order, or null for more than MAX_SPECULATED
+    private int[] reachableStates() {
+        boolean[] seen = new boolean[fsm.stateCount()];
+        int[] queue = new int[MAX_SPECULATED];
+        int count = 0;
+        queue[count++] = fsm.initialState;
+        seen[fsm.initialState] = true;
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < fsm.classCount(); c++) {
+                int t = fsm.nextInClass(queue[i], c);
+                if (t != CompiledFSM.NONE && !seen[t]) {
+                    if (count == MAX_SPECULATED) {
+                        return null;
+                    }
+                    seen[t] = true;
+                    queue[count++] = t;
+                }
+            }
+        }
+        int[] states = Arrays.copyOf(queue, count);
+        Arrays.sort(states);
+        return states;
+    }
+
+    /**
+     * The state at to (NONE when the run stops inside the chunk) for each of
+     * starts at from, in the same order, or null when the runs did not converge.
+     */
+    private int[] speculate(int[] starts, CharSequence input, int from, int to) {
+        // live[j] is the current state of run j; runOf[i] the run that starts[i] has merged into
+        int[] live = starts.clone();
+        int liveCount = live.length;
+        int[] runOf = new int[starts.length];
+        for (int i = 0; i < runOf.length; i++) {
+            runOf[i] = i;
+        }
+        int[] slotOf = new int[fsm.stateCount() + 1];
+        int[] remap = new int[live.length];
+
+        int i = from;
+        int window = Math.min(to, from + CONVERGE_WINDOW);
+        int checkedCount = liveCount;
+        while (i < window && liveCount > 1) {
+            if ((i - from) % CHECK_INTERVAL == 0 && i > from) {
+                // Give up early when the runs stopped converging quickly enough to be worth it
+                if (liveCount > MAX_LIVE && liveCount > checkedCount / 2) {
+                    return null;
+                }
+                checkedCount = liveCount;
+            }
+            int symbolClass = fsm.charClass(input.charAt(i));
+            for (int j = 0; j < liveCount; j++) {
+                int s = live[j];
+                live[j] = s == CompiledFSM.NONE || symbolClass == CompiledFSM.NONE
+                        ? CompiledFSM.NONE : fsm.nextInClass(s, symbolClass);
+            }
+            i++;
+
+            // Merge runs in the same state; slotOf is indexed by state + 1 so NONE has a slot too
+            int merged = 0;
+            for (int j = 0; j < liveCount; j++) {
+                slotOf[live[j] + 1] = -1;
+            }
+            for (int j = 0; j < liveCount; j++) {
+                int slot = slotOf[live[j] + 1];
+                if (slot < 0) {
+                    slot = merged++;
+                    slotOf[live[j] + 1] = slot;
+                    live[slot] = live[j];
+                }
+                remap[j] = slot;
+            }
+            if (merged < liveCount) {
+                for (int k = 0; k < runOf.length; k++) {
+                    runOf[k] = remap[runOf[k]];
+                }
+                liveCount = merged;
+            }
+        }
+        if (liveCount > MAX_LIVE) {
+            return null;
+        }
+
+        for (int j = 0; j < liveCount; j++) {
+            if (live[j] != CompiledFSM.NONE) {
+                long r = fsm.run(live[j], input, i, to, null);
+                live[j] = CompiledFSM.stoppedAt(r) < to ? CompiledFSM.NONE : CompiledFSM.stateOf(r);
+            }
+        }
+        int[] map = new int[starts.length];
+        for (int k = 0; k < starts.length; k++) {
+            map[k] = live[runOf[k]];
+        }
+        return map;
+    }
+
+    double bytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : length * 1e9 / elapsedNanos;
+    }
+
+    // The bytes of a buffer as single-byte characters, without copying them
+    private static final class ByteChars implements CharSequence {
+        private final ByteBuffer buffer;
+        private final int length;
+
+        ByteChars(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ByteChars(buffer.slice(start, end - start), end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(0, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from a prefix of an input to the state a machine is in after
+ * it, used by EXECUTE-FILE -prefix -cache across blocks and runs. Only
+ * prefixes whose length is a multiple of STRIDE are cached, so looking up the
+ * longest cached prefix of an input takes one probe per STRIDE symbols.
+ *
+ * Prefixes are identified by a 64-bit hash of their upper-cased symbols,
+ * seeded with the machine's fingerprint so entries of different machines
+ * never match. The cache is direct mapped: the low bits of the mixed hash
+ * pick the slot, which holds the whole 64-bit key in one array and the state,
+ * tagged with the high 32 bits of the key, in another. Concurrent batch
+ * threads may overwrite each other's entries; a lookup checks the key, then
+ * the tag of the state it read, then the key again, so it never returns the
+ * state of an entry being replaced unless both entries also agree in the tag.
+ *
+ * A lookup is still wrong for two different prefixes with the same 64-bit
+ * hash. Among n distinct cached prefixes that happens with probability about
+ * n^2 / 2^65, about 1 in 3700 for a hundred million.
+ */
+final class PrefixCache {
+    static final int STRIDE = 16;
+
+    final LongAdder lookups = new LongAdder();
+    final LongAdder hits = new LongAdder();
+
+    // keys[i] is the mixed hash cached in slot i, 0 for an empty slot; states[i] the tag and state + 1
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+    private final int mask;
+
+    /** A cache of at least the given number of entries, rounded up to a power of two. */
+    PrefixCache(int entries) {
+        int size = capacityFor(entries);
+        this.keys = new AtomicLongArray(size);
+        this.states = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    static int capacityFor(int entries) {
+        return entries <= 1 ? 1 : Integer.highestOneBit(entries - 1) << 1;
+    }
+
+    int capacity() {
+        return keys.length();
+    }
+
+    static long seed(CompiledFSM fsm) {
+        return fsm.fingerprint();
+    }
+
+    /** Hash of a prefix one symbol longer than the prefix with hash h. */
+    static long extend(long h, char upperCased) {
+        return (h ^ upperCased) * 0x100000001b3L;
+    }
+
+    /** The cached state after the prefix with hash h, or CompiledFSM.NONE. */
+    int get(long h) {
+        lookups.increment();
+        long mixed = mix(h);
+        int slot = (int) mixed & mask;
+        if (mixed == 0 || keys.getAcquire(slot) != mixed) {
+            return CompiledFSM.NONE;
+        }
+        long entry = states.getAcquire(slot);
+        if ((int) (entry >>> 32) != (int) (mixed >>> 32) || keys.getAcquire(slot) != mixed) {
+            return CompiledFSM.NONE;
+        }
+        hits.increment();
+        return (int) entry - 1;
+    }
+
+    void put(long h, int state) {
+        long mixed = mix(h);
+        int slot = (int) mixed & mask;
+        states.setRelease(slot, (mixed & 0xFFFFFFFF00000000L) | (state + 1L));
+        keys.setRelease(slot, mixed);
+    }
+
+    void clear() {
+        for (int i = 0; i < keys.length(); i++) {
+            keys.setOpaque(i, 0);
+            states.setOpaque(i, 0);
+        }
+        lookups.reset();
+        hits.reset();
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.*;
+
+/**
+ * Builds the union, intersection or difference of two machines, or the
+ * complement of one, as a new CompiledFSM. Only product states reachable from
+ * the pair of initial states are created, so the result is usually far
+ * smaller than the full cross product.
+ *
+ * A machine that has stopped (undeclared symbol or missing transition) is
+ * NONE in the pair and stays NONE. Pairs from which the operation can no
+ * longer accept are left out, so the product stops where its operands would:
+ * for a union when both have stopped, for an intersection when either has,
+ * for a difference when the first has. The complement keeps the stopped state
+ * as an accepting sink, so it accepts every string over the first machine's
+ * alphabet that the machine does not.
+ *
+ * Product states are named P0, P1, ... in the order they are reached, P0
+ * being the initial state.
+ */
+final class ProductFSM {
+    enum Operation { UNION, INTERSECTION, DIFFERENCE, COMPLEMENT }
+
+    Set<Character> symbols = new HashSet<>();
+    Set<String> states = new HashSet<>();
+    String initialState;
+    Set<String> finalStates = new HashSet<>();
+    Map<String, Map<Character, String>> transitions = new HashMap<>();
+
+    private final Operation operation;
+    private final CompiledFSM a;
+    // Null for COMPLEMENT
+    private final CompiledFSM b;
+
+    ProductFSM(Operation operation, CompiledFSM a, CompiledFSM b) {
+        this.operation = operation;
+        this.a = a;
+        this.b = b;
+    }
+
+    void build() {
+        for (char c : a.symbolChars) {
+            symbols.add(c);
+        }
+        if (b != null) {
+            for (char c : b.symbolChars) {
+                symbols.add(c);
+            }
+        }
+        char[] symbolChars = new char[symbols.size()];
+        int n = 0;
+        for (Character c : new TreeSet<>(symbols)) {
+            symbolChars[n++] = c;
+        }
+
+        // Pair (p, q) is packed into a long, NONE included; q is NONE throughout for COMPLEMENT
+        Map<Long, String> names = new HashMap<>();
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+        long start = pair(a.initialState, b == null ? CompiledFSM.NONE : b.initialState);
+        initialState = name(start, names, queue);
+
+        while (!queue.isEmpty()) {
+            long current = queue.poll();
+            int p = (int) (current >> 32);
+            int q = (int) current;
+            String from = names.get(current);
+            for (char c : symbolChars) {
+                int p2 = step(a, p, c);
+                int q2 = b == null ? CompiledFSM.NONE : step(b, q, c);
+                if (!canAccept(p2, q2)) {
+                    continue;
+                }
+                String to = name(pair(p2, q2), names, queue);
+                transitions.computeIfAbsent(from, k -> new HashMap<>()).put(c, to);
+            }
+        }
+    }
+
+    private String name(long pair, Map<Long, String> names, ArrayDeque<Long> queue) {
+        String name = names.get(pair);
+        if (name == null) {
+            name = "P" + names.size();
+            names.put(pair, name);
+            queue.add(pair);
+            states.add(name);
+            if (isFinal((int) (pair >> 32), (int) pair)) {
+                finalStates.add(name);
+            }
+        }
+        return name;
+    }
+
+    private static long pair(int p, int q) {
+        return ((long) p << 32) | (q & 0xFFFFFFFFL);
+    }
+
+    private static int step(CompiledFSM fsm, int state, char c) {
+        if (state == CompiledFSM.NONE) {
+            return CompiledFSM.NONE;
+        }
+        int symbol = fsm.symbolId(c);
+        return symbol == CompiledFSM.NONE ? CompiledFSM.NONE : fsm.next(state, symbol);
+    }
+
+    private boolean isFinal(int p, int q) {
+        boolean inA = p != CompiledFSM.NONE && a.isFinal(p);
+        boolean inB = q != CompiledFSM.NONE && b.isFinal(q);
+        switch (operation) {
+            case UNION:
+                return inA || inB;
+            case INTERSECTION:
+                return inA && inB;
+            case DIFFERENCE:
+                return inA && !inB;
+            default:
+                return !inA;
+        }
+    }
+
+    // False for pairs that can never accept again, which the product leaves out
+    private boolean canAccept(int p, int q) {
+        switch (operation) {
+            case UNION:
+                return p != CompiledFSM.NONE || q != CompiledFSM.NONE;
+            case INTERSECTION:
+                return p != CompiledFSM.NONE && q != CompiledFSM.NONE;
+            case DIFFERENCE:
+                return p != CompiledFSM.NONE;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Runs a command script for {@code FSMMain -batch}: commands are not echoed,
+ * everything goes to one large buffered sink, and a summary of the time spent
+ * per command type is written at the end. Commands print through System.out
+ * as usual. Their output is scanned as it is written; by default it goes
+ * straight on to the sink, and the other modes keep only what they report:
+ *
+ * <ul>
+ * <li>all output, as processFile prints it but without the echo (default)</li>
+ * <li>-errors: only the lines starting with "Error", each prefixed with its
+ * script line number</li>
+ * <li>-quiet: nothing but the summary</li>
+ * <li>-json: one JSON object per command (only for failed commands with
+ * -errors), and the summary as a last JSON object</li>
+ * </ul>
+ *
+ * A command failed when a line of its output starts with "Error". The lines
+ * kept for one command are limited to KEPT_LIMIT bytes; the rest are counted
+ * and reported as not shown.
+ */
+final class ScriptRunner {
+    static final int ALL = 0;
+    static final int ERRORS = 1;
+    static final int QUIET = 2;
+
+    private static final int SINK_BUFFER = 1 << 20;
+    private static final int READ_BUFFER = 1 << 20;
+    private static final int KEPT_LIMIT = 1 << 20;
+    private static final byte[] ERROR = "Error".getBytes(StandardCharsets.US_ASCII);
+
+    private final int mode;
+    private final boolean json;
+    private final PrintStream sink;
+    private final CommandOutput output;
+    // Per command type: count, errors and nanoseconds, in the order the types first appear
+    private final Map<String, long[]> types = new LinkedHashMap<>();
+    // The running command: its script line, type and start time
+    private int lineNumber;
+    private String type;
+    private long commandStart;
+    private long start;
+    private PrintStream console;
+
+    ScriptRunner(int mode, boolean json, OutputStream out) {
+        this.mode = mode;
+        this.json = json;
+        this.sink = new PrintStream(new BufferedOutputStream(out, SINK_BUFFER), false, StandardCharsets.UTF_8);
+        this.output = new CommandOutput(mode == ALL && !json, mode == ALL && json, mode == ERRORS);
+    }
+
+    /**
+     * Runs the script and writes the summary. Returns true when the script
+     * ended with EXIT; the caller then ends the process once the sink is
+     * closed.
+     */
+    boolean run(String fileName) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName, StandardCharsets.UTF_8), READ_BUFFER)) {
+            return run(in);
+        }
+    }
+
+    private boolean run(BufferedReader in) throws IOException {
+        console = System.out;
+        System.setOut(new PrintStream(output, false, StandardCharsets.UTF_8));
+        // EXIT in a file the script loads ends the process in the middle of that command
+        FSMMain.setExitHook(this::exitInCommand);
+        boolean exit = false;
+        start = System.nanoTime();
+        try {
+            String line;
+            lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.equals("?")) {
+                    continue;
+                }
+                String command = line.replace(";", "").trim();
+                type = type(command);
+                if (type.equals("EXIT")) {
+                    exit = true;
+                    break;
+                }
+
+                output.reset();
+                commandStart = System.nanoTime();
+                FSMMain.processCommand(command);
+                endCommand();
+            }
+        } finally {
+            FSMMain.setExitHook(null);
+            finish();
+        }
+        return exit;
+    }
+
+    private void endCommand() {
+        System.out.flush();
+        output.finish();
+        long elapsed = System.nanoTime() - commandStart;
+        boolean failed = output.failed;
+
+        long[] totals = types.computeIfAbsent(type, k -> new long[3]);
+        totals[0]++;
+        totals[1] += failed ? 1 : 0;
+        totals[2] += elapsed;
+        report(lineNumber, type, elapsed, failed);
+    }
+
+    private void finish() {
+        System.setOut(console);
+        summary(System.nanoTime() - start);
+        sink.flush();
+    }
+
+    // Run by FSMMain.handleExit before it ends the process: the running command and the summary still go out
+    private void exitInCommand() {
+        FSMMain.setExitHook(null);
+        endCommand();
+        finish();
+    }
+
+    private static String type(String command) {
+        int end = 0;
+        while (end < command.length() && !Character.isWhitespace(command.charAt(end))) {
+            end++;
+        }
+        return command.substring(0, end).toUpperCase();
+    }
+
+    private void report(int lineNumber, String type, long elapsed, boolean failed) {
+        if (mode == QUIET || (mode == ERRORS && !failed)) {
+            return;
+        }
+        if (json) {
+            StringBuilder sb = new StringBuilder(128).append("{\"line\":").append(lineNumber).append(",\"command\":");
+            quote(sb, type).append(",\"ok\":").append(!failed).append(",\"us\":").append(elapsed / 1000)
+                    .append(",\"output\":[");
+            String separator = "";
+            for (String outputLine : output.lines) {
+                quote(sb.append(separator), outputLine);
+                separator = ",";
+            }
+            sink.print(sb.append("]}\n"));
+        } else if (mode == ERRORS) {
+            for (String outputLine : output.lines) {
+                sink.print("line " + lineNumber + ": " + outputLine + "\n");
+            }
+        }
+    }
+
+    private void summary(long elapsed) {
+        long commands = 0;
+        long errors = 0;
+        for (long[] totals : types.values()) {
+            commands += totals[0];
+            errors += totals[1];
+        }
+        List<Map.Entry<String, long[]>> byTime = new ArrayList<>(types.entrySet());
+        byTime.sort((a, b) -> Long.compare(b.getValue()[2], a.getValue()[2]));
+
+        if (json) {
+            sink.print("{\"summary\":{\"commands\":" + commands + ",\"errors\":" + errors + ",\"ms\":"
+                    + String.format(Locale.ROOT, "%.3f", elapsed / 1e6) + ",\"types\":[");
+            String separator = "";
+            for (Map.Entry<String, long[]> entry : byTime) {
+                long[] totals = entry.getValue();
+                StringBuilder sb = new StringBuilder(separator).append("{\"command\":");
+                quote(sb, entry.getKey()).append(",\"count\":").append(totals[0]).append(",\"errors\":")
+                        .append(totals[1]).append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", totals[2] / 1e6))
+                        .append('}');
+                sink.print(sb);
+                separator = ",";
+            }
+            sink.print("]}}\n");
+            return;
+        }
+        sink.printf("Script: %d commands in %.1f ms (%.0f commands/sec), %d with errors%n", commands,
+                elapsed / 1e6, elapsed == 0 ? 0.0 : commands * 1e9 / elapsed, errors);
+        for (Map.Entry<String, long[]> entry : byTime) {
+            long[] totals = entry.getValue();
+            sink.printf("  %-16s %10d commands %12.1f ms %10.1f us/command %8d errors%n", entry.getKey(),
+                    totals[0], totals[2] / 1e6, totals[2] / 1e3 / totals[0], totals[1]);
+        }
+    }
+
+    private static StringBuilder quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Output of the running command. Every byte is scanned for lines starting
+     * with "Error"; then it is either passed straight to the sink or, for the
+     * modes that report lines, the lines they need are kept until the next
+     * command starts.
+     */
+    private final class CommandOutput extends OutputStream {
+        private final boolean passThrough;
+        private final boolean keepAll;
+        private final boolean keepErrors;
+        boolean failed;
+        final List<String> lines = new ArrayList<>();
+        // Bytes of "Error" matched at the start of the current line, -1 once it cannot match
+        private int matched;
+        private int lineLength;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        private boolean lineCut;
+        private long keptBytes;
+        private int droppedLines;
+
+        CommandOutput(boolean passThrough, boolean keepAll, boolean keepErrors) {
+            this.passThrough = passThrough;
+            this.keepAll = keepAll;
+            this.keepErrors = keepErrors;
+        }
+
+        void reset() {
+            failed = false;
+            lines.clear();
+            matched = 0;
+            lineLength = 0;
+            line.reset();
+            lineCut = false;
+            keptBytes = 0;
+            droppedLines = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            if (passThrough) {
+                sink.write(b);
+            }
+            scan((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (passThrough) {
+                sink.write(b, off, len);
+            }
+            for (int i = off; i < off + len; i++) {
+                scan(b[i]);
+            }
+        }
+
+        private void scan(byte b) {
+            if (b == '\n') {
+                endLine();
+                return;
+            }
+            lineLength++;
+            if (matched >= 0 && matched < ERROR.length) {
+                matched = ERROR[matched] == b ? matched + 1 : -1;
+                failed |= matched == ERROR.length;
+            }
+            if (keepAll || (keepErrors && matched >= 0)) {
+                if (keptBytes + line.size() < KEPT_LIMIT) {
+                    line.write(b);
+                } else {
+                    lineCut = true;
+                }
+            }
+        }
+
+        private void endLine() {
+            if (keepAll || (keepErrors && matched == ERROR.length)) {
+                String text = line.toString(StandardCharsets.UTF_8);
+                if (text.endsWith("\r")) {
+                    text = text.substring(0, text.length() - 1);
+                }
+                if (lineCut) {
+                    droppedLines++;
+                } else if (!text.isEmpty()) {
+                    lines.add(text);
+                    keptBytes += line.size();
+                }
+            }
+            matched = 0;
+            lineLength = 0;
+            line.reset();
+            lineCut = false;
+        }
+
+        // Ends the command's last line when it has no line break, and notes the lines not kept
+        void finish() {
+            if (lineLength > 0) {
+                endLine();
+            }
+            if (droppedLines > 0) {
+                lines.add("(" + droppedLines + " more lines not shown)");
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Finds the substrings of a file that the FSM accepts, reading the file in
+ * fixed-size chunks. Bytes are taken as single-byte characters and upper-cased
+ * like EXECUTE input. A match may be at most maxLength characters long; the
+ * window keeps that many characters past the current start position loaded,
+ * so matches that cross chunk boundaries are found and memory stays bounded
+ * by chunkSize + maxLength.
+ */
+final class StreamSearcher {
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    static final int DEFAULT_MAX_LENGTH = 4096;
+
+    long matches;
+    long bytes;
+    long elapsedNanos;
+
+    private final CompiledFSM fsm;
+    private final boolean allMatches;
+    private final boolean withText;
+    private final int maxLength;
+    private final int chunkSize;
+
+    /**
+     * @param allMatches report every accepted substring, overlapping ones included,
+     *                   instead of the leftmost-longest non-overlapping matches
+     * @param withText   also write the matched text after offset and length
+     */
+    StreamSearcher(CompiledFSM fsm, boolean allMatches, boolean withText, int maxLength, int chunkSize) {
+        this.fsm = fsm;
+        this.allMatches = allMatches;
+        this.withText = withText;
+        this.maxLength = maxLength;
+        this.chunkSize = chunkSize;
+    }
+
+    void search(Path file, Writer out) throws IOException {
+        long start = System.nanoTime();
+        byte[] window = new byte[chunkSize + maxLength];
+        ByteBuffer buffer = ByteBuffer.wrap(window);
+        // File offset of window[0]
+        long base = 0;
+        int limit = 0;
+        boolean eof = false;
+        int i = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (true) {
+                if (limit - i < maxLength && !eof) {
+                    System.arraycopy(window, i, window, 0, limit - i);
+                    base += i;
+                    limit -= i;
+                    i = 0;
+                    buffer.clear().position(limit);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    limit = buffer.position();
+                }
+                if (i >= limit) {
+                    break;
+                }
+
+                int longest = match(window, i, limit, base, out);
+                if (!allMatches && longest > i) {
+                    i = longest;
+                } else {
+                    i++;
+                }
+            }
+            bytes = base + limit;
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    // Runs from window[from]; reports each accepting end when allMatches, returns the longest end or -1
+    private int match(byte[] window, int from, int limit, long base, Writer out) throws IOException {
+        int state = fsm.initialState;
+        int longest = -1;
+        int end = Math.min(limit, from + maxLength);
+        for (int j = from; j < end; j++) {
+            int symbolClass = fsm.charClass((char) (window[j] & 0xFF));
+            if (symbolClass == CompiledFSM.NONE) {
+                break;
+            }
+            state = fsm.nextInClass(state, symbolClass);
+            if (state == CompiledFSM.NONE) {
+                break;
+            }
+            if (fsm.isFinal(state)) {
+                longest = j + 1;
+                if (allMatches) {
+                    report(window, from, longest, base, out);
+                }
+            }
+        }
+        if (!allMatches && longest > 0) {
+            report(window, from, longest, base, out);
+        }
+        return longest;
+    }
+
+    private void report(byte[] window, int from, int to, long base, Writer out) throws IOException {
+        matches++;
+        out.write(Long.toString(base + from));
+        out.write(' ');
+        out.write(Integer.toString(to - from));
+        if (withText) {
+            out.write(' ');
+            for (int k = from; k < to; k++) {
+                out.write((char) (window[k] & 0xFF));
+            }
+        }
+        out.write('\n');
+    }
+
+    double bytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+    }
+}
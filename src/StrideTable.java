@@ -0,0 +1,59 @@
+/**
+ * Transition table over blocks of symbols: targets[state * width + index] is
+ * the state reached from state after the stride symbols whose classes are
+ * encoded in index (first symbol most significant, base classCount), or NONE
+ * when any step on the way is undefined. The stride is the longest one, up to
+ * MAX_STRIDE, whose table fits in MAX_STRIDE_ENTRIES; a stride of 1 means no
+ * table.
+ */
+final class StrideTable {
+    final int stride;
+    final int width;
+    final int[] targets;
+
+    private StrideTable(int stride, int width, int[] targets) {
+        this.stride = stride;
+        this.width = width;
+        this.targets = targets;
+    }
+
+    static StrideTable build(CompiledFSM fsm) {
+        int states = fsm.stateCount();
+        int symbols = fsm.classCount();
+        int stride = 1;
+        long width = symbols;
+        while (stride < CompiledFSM.MAX_STRIDE && symbols > 0
+                && (long) states * width * symbols <= CompiledFSM.MAX_STRIDE_ENTRIES) {
+            width *= symbols;
+            stride++;
+        }
+        if (stride == 1) {
+            return new StrideTable(1, symbols, null);
+        }
+
+        // Extend one symbol at a time: T(j)[s][idx * k + b] = T(1)[T(j - 1)[s][idx]][b]
+        int[] previous = new int[states * symbols];
+        for (int s = 0; s < states; s++) {
+            for (int a = 0; a < symbols; a++) {
+                previous[s * symbols + a] = fsm.nextInClass(s, a);
+            }
+        }
+        int previousWidth = symbols;
+        for (int j = 2; j <= stride; j++) {
+            int nextWidth = previousWidth * symbols;
+            int[] next = new int[states * nextWidth];
+            for (int s = 0; s < states; s++) {
+                for (int idx = 0; idx < previousWidth; idx++) {
+                    int mid = previous[s * previousWidth + idx];
+                    int base = s * nextWidth + idx * symbols;
+                    for (int b = 0; b < symbols; b++) {
+                        next[base + b] = mid == CompiledFSM.NONE ? CompiledFSM.NONE : fsm.nextInClass(mid, b);
+                    }
+                }
+            }
+            previous = next;
+            previousWidth = nextWidth;
+        }
+        return new StrideTable(stride, previousWidth, previous);
+    }
+}
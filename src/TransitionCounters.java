@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit counters for every entry of one CompiledFSM's transition table. Threads
+ * are spread over a few lazily allocated stripes so concurrent executions
+ * rarely touch the same counter; totals are summed over the stripes on read.
+ * A large table gets fewer stripes, so that all of them together stay within
+ * STRIPE_BUDGET where one stripe fits; a single stripe is still a full copy.
+ */
+final class TransitionCounters {
+    private static final int STRIPES = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static final long STRIPE_BUDGET = 64L << 20;
+
+    final LongAdder starts = new LongAdder();
+
+    private final int size;
+    private final AtomicLongArray[] stripes;
+
+    TransitionCounters(int size) {
+        this.size = size;
+        long stripeBytes = 8L * Math.max(1, size);
+        this.stripes = new AtomicLongArray[(int) Math.max(1, Math.min(STRIPES, STRIPE_BUDGET / stripeBytes))];
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    /** Memory taken once every stripe is allocated. */
+    long maxBytes() {
+        return 8L * size * stripes.length;
+    }
+
+    AtomicLongArray stripe() {
+        int i = (int) (Thread.currentThread().threadId() % stripes.length);
+        AtomicLongArray stripe = stripes[i];
+        if (stripe == null) {
+            synchronized (this) {
+                stripe = stripes[i];
+                if (stripe == null) {
+                    stripe = new AtomicLongArray(size);
+                    stripes[i] = stripe;
+                }
+            }
+        }
+        return stripe;
+    }
+
+    /** Hits of table entry state * symbolCount + symbol, summed over all stripes. */
+    long[] totals() {
+        long[] totals = new long[size];
+        synchronized (this) {
+            for (AtomicLongArray stripe : stripes) {
+                if (stripe == null) {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    totals[i] += stripe.get(i);
+                }
+            }
+        }
+        return totals;
+    }
+
+    synchronized void reset() {
+        starts.reset();
+        for (int s = 0; s < stripes.length; s++) {
+            stripes[s] = null;
+        }
+    }
+}